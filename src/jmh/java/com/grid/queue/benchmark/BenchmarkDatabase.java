@@ -0,0 +1,109 @@
+package com.grid.queue.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.grid.queue.config.ConnectionPool;
+import com.grid.queue.config.DatabaseConnectionConfig;
+import com.grid.queue.message.JdbcMessageRepository;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageBody;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.MessageRepositoryConfig;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static org.testcontainers.containers.PostgreSQLContainer.IMAGE;
+import static org.testcontainers.containers.PostgreSQLContainer.POSTGRESQL_PORT;
+
+/**
+ * Postgres container with the migrated schema, shared by all benchmarks of a fork.
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+    private static final String PG_VERSION = "14";
+    private static final String DATABASE_NAME = "message";
+    private static final String USERNAME = "benchmark";
+    private static final String PASSWORD = "benchmark";
+    private static final int INSERT_CHUNK = 10_000;
+
+    private final PostgreSQLContainer<?> container;
+    private final ConnectionPool connectionPool;
+    private final DataSource dataSource;
+    private final MessageRepository repository;
+
+    public BenchmarkDatabase() {
+        container = new PostgreSQLContainer<>(DockerImageName.parse(IMAGE).withTag(PG_VERSION))
+                .withDatabaseName(DATABASE_NAME)
+                .withUsername(USERNAME)
+                .withPassword(PASSWORD);
+        container.start();
+        var config = new DatabaseConnectionConfig(container.getHost(), container.getMappedPort(POSTGRESQL_PORT),
+                DATABASE_NAME, USERNAME, PASSWORD);
+        connectionPool = new ConnectionPool(config);
+        dataSource = connectionPool.dataSource();
+        new Flyway(new FluentConfiguration().dataSource(dataSource)).migrate();
+        repository = new JdbcMessageRepository(dataSource, new ObjectMapper(),
+                MessageRepositoryConfig.defaults().withMessageLogging(false));
+    }
+
+    public DataSource dataSource() {
+        return dataSource;
+    }
+
+    public MessageRepository repository() {
+        return repository;
+    }
+
+    /**
+     * Adds messages to the queue until it holds {@code depth} pending messages.
+     */
+    public void fillQueue(String queueName, int depth, MessageBody body) {
+        var missing = depth - pendingMessages(queueName);
+        while (missing > 0) {
+            var chunk = Math.min(missing, INSERT_CHUNK);
+            repository.addAll(messages(queueName, chunk, body));
+            missing -= chunk;
+        }
+    }
+
+    public static List<Message> messages(String queueName, int count, MessageBody body) {
+        var messages = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(randomUUID(), queueName, CREATED, body, now()));
+        }
+        return messages;
+    }
+
+    /**
+     * @return JSON object whose serialized form is roughly {@code size} bytes long
+     */
+    public static MessageBody body(int size) {
+        return MessageBody.raw("{\"data\": \"" + "x".repeat(Math.max(0, size - 12)) + "\"}");
+    }
+
+    private int pendingMessages(String queueName) {
+        try (var connection = dataSource.getConnection();
+             var statement = connection.prepareStatement("SELECT count(*) FROM message WHERE queue_name = ? AND state = 'CREATED'")) {
+            statement.setString(1, queueName);
+            try (var resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error counting pending messages of the queue " + queueName, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+        container.stop();
+    }
+}
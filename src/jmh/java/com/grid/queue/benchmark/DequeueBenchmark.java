@@ -0,0 +1,90 @@
+package com.grid.queue.benchmark;
+
+import com.grid.queue.message.Message;
+import com.grid.queue.message.Task;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Claims and acknowledges messages with 1 to 64 concurrent consumers. The queue is topped up to the backlog depth
+ * before every iteration, so the backlog parameter should exceed the number of messages consumed per iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 2, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@Fork(1)
+public class DequeueBenchmark {
+    private static final String QUEUE_NAME = "dequeue_benchmark";
+    private static final Task NO_OP_TASK = message -> {
+    };
+
+    @Param({"100", "10000"})
+    private int payloadSize;
+
+    @Param({"50000", "500000"})
+    private int backlog;
+
+    private BenchmarkDatabase database;
+
+    @Setup(Level.Trial)
+    public void startDatabase() {
+        database = new BenchmarkDatabase();
+    }
+
+    @Setup(Level.Iteration)
+    public void fillQueue() {
+        database.fillQueue(QUEUE_NAME, backlog, BenchmarkDatabase.body(payloadSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() {
+        database.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<Message> consumers1() {
+        return processOldestTask();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<Message> consumers4() {
+        return processOldestTask();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Optional<Message> consumers16() {
+        return processOldestTask();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Optional<Message> consumers64() {
+        return processOldestTask();
+    }
+
+    private Optional<Message> processOldestTask() {
+        return database.repository().processOldestTask(QUEUE_NAME, NO_OP_TASK);
+    }
+}
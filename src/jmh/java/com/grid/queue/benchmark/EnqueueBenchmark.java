@@ -0,0 +1,75 @@
+package com.grid.queue.benchmark;
+
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 2, time = 5, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 5, timeUnit = SECONDS)
+@Fork(1)
+public class EnqueueBenchmark {
+    private static final String QUEUE_NAME = "enqueue_benchmark";
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"100", "1000", "10000"})
+    private int payloadSize;
+
+    private BenchmarkDatabase database;
+    private MessageBody body;
+
+    @Setup(Level.Trial)
+    public void startDatabase() {
+        database = new BenchmarkDatabase();
+        body = BenchmarkDatabase.body(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() {
+        database.close();
+    }
+
+    @Benchmark
+    public void add() {
+        database.repository().add(new Message(randomUUID(), QUEUE_NAME, CREATED, body, now()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void addAll(Batch batch) {
+        database.repository().addAll(batch.messages);
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+        private List<Message> messages;
+
+        @Setup(Level.Invocation)
+        public void prepare(EnqueueBenchmark benchmark) {
+            messages = BenchmarkDatabase.messages(QUEUE_NAME, BATCH_SIZE, benchmark.body);
+        }
+    }
+}
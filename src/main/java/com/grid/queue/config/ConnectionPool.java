@@ -6,15 +6,30 @@ import com.zaxxer.hikari.HikariDataSource;
 
 import javax.sql.DataSource;
 
-public class ConnectionPool {
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * Hikari pool of pgjdbc-ng connections. Producers, consumers and statistics queries can each get a pool of their own,
+ * see {@link com.grid.queue.message.MessageDataSources}, so consumers holding every connection don't delay enqueues.
+ */
+public class ConnectionPool implements AutoCloseable {
     private final HikariDataSource ds;
 
     public ConnectionPool(DatabaseConnectionConfig connectionConfig) {
+        this(connectionConfig, PoolConfig.defaults("message-pool"));
+    }
+
+    public ConnectionPool(DatabaseConnectionConfig connectionConfig, PoolConfig poolConfig) {
+        required("poolConfig", poolConfig);
         final var config = new HikariConfig();
-        config.setDataSource(createPgDataSource(connectionConfig));
-        config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setDataSource(createPgDataSource(required("connectionConfig", connectionConfig), poolConfig));
+        config.setPoolName(poolConfig.name());
+        config.setMaximumPoolSize(poolConfig.maxPoolSize());
+        config.setMinimumIdle(poolConfig.minIdle());
+        config.setConnectionTimeout(poolConfig.connectionTimeout().toMillis());
+        config.setIdleTimeout(poolConfig.idleTimeout().toMillis());
+        config.setMaxLifetime(poolConfig.maxLifetime().toMillis());
+        config.setReadOnly(poolConfig.readOnly());
         ds = new HikariDataSource(config);
     }
 
@@ -22,13 +37,42 @@ public class ConnectionPool {
         return ds;
     }
 
-    private DataSource createPgDataSource(DatabaseConnectionConfig config) {
+    public PoolStats stats() {
+        final var pool = ds.getHikariPoolMXBean();
+        return new PoolStats(pool.getActiveConnections(), pool.getIdleConnections(), pool.getTotalConnections(),
+                ds.getMaximumPoolSize(), pool.getThreadsAwaitingConnection());
+    }
+
+    @Override
+    public void close() {
+        ds.close();
+    }
+
+    /**
+     * Data source that opens a new connection on every call, for a connection that's held as long as the application
+     * runs, like the listening connection of {@link com.grid.queue.consumer.QueueNotifications}. Taken from a pool, such
+     * a connection would never be returned to it.
+     */
+    public static DataSource unpooled(DatabaseConnectionConfig connectionConfig, String applicationName) {
+        required("connectionConfig", connectionConfig);
         final var dataSource = new PGDataSource();
-        dataSource.setServerName(config.host());
-        dataSource.setPort(config.port());
-        dataSource.setUser(config.username());
-        dataSource.setPassword(config.password());
-        dataSource.setDatabaseName(config.databaseName());
+        dataSource.setServerName(connectionConfig.host());
+        dataSource.setPort(connectionConfig.port());
+        dataSource.setUser(connectionConfig.username());
+        dataSource.setPassword(connectionConfig.password());
+        dataSource.setDatabaseName(connectionConfig.databaseName());
+        dataSource.setApplicationName(required("applicationName", applicationName));
+        return dataSource;
+    }
+
+    /**
+     * The statement cache is a setting of the driver. Hikari only passes data source properties to a data source it
+     * creates itself, so they're set here.
+     */
+    private DataSource createPgDataSource(DatabaseConnectionConfig config, PoolConfig poolConfig) {
+        final var dataSource = (PGDataSource) unpooled(config, poolConfig.name());
+        dataSource.setPreparedStatementCacheSize(poolConfig.preparedStatementCacheSize());
+        dataSource.setPreparedStatementCacheThreshold(poolConfig.preparedStatementCacheThreshold());
         return dataSource;
     }
 }
@@ -0,0 +1,93 @@
+package com.grid.queue.config;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * @param name                            pool name, used for its threads and in logs
+ * @param maxPoolSize                     connections the pool opens at most
+ * @param minIdle                         idle connections the pool keeps open
+ * @param connectionTimeout               how long a caller waits for a free connection before it fails
+ * @param idleTimeout                     how long a connection above {@code minIdle} may stay idle before it's closed
+ * @param maxLifetime                     how long a connection is used at most before it's replaced
+ * @param preparedStatementCacheSize      statements every connection keeps prepared on the server
+ * @param preparedStatementCacheThreshold executions of a statement before it's prepared on the server. {@code 0}
+ *                                        prepares every statement on first use
+ * @param readOnly                        whether connections are read-only, e.g. for a pool of a read replica
+ */
+public record PoolConfig(String name,
+                         int maxPoolSize,
+                         int minIdle,
+                         Duration connectionTimeout,
+                         Duration idleTimeout,
+                         Duration maxLifetime,
+                         int preparedStatementCacheSize,
+                         int preparedStatementCacheThreshold,
+                         boolean readOnly) {
+    private static final int DEFAULT_MAX_POOL_SIZE = 10;
+    private static final Duration DEFAULT_CONNECTION_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final Duration DEFAULT_MAX_LIFETIME = Duration.ofMinutes(30);
+    private static final int DEFAULT_PREPARED_STATEMENT_CACHE_SIZE = 250;
+    private static final int DEFAULT_PREPARED_STATEMENT_CACHE_THRESHOLD = 0;
+
+    public PoolConfig(String name,
+                      int maxPoolSize,
+                      int minIdle,
+                      Duration connectionTimeout,
+                      Duration idleTimeout,
+                      Duration maxLifetime,
+                      int preparedStatementCacheSize,
+                      int preparedStatementCacheThreshold,
+                      boolean readOnly) {
+        this.name = required("name", name);
+        this.maxPoolSize = positive("maxPoolSize", maxPoolSize);
+        this.minIdle = minIdle;
+        this.connectionTimeout = required("connectionTimeout", connectionTimeout);
+        this.idleTimeout = required("idleTimeout", idleTimeout);
+        this.maxLifetime = required("maxLifetime", maxLifetime);
+        this.preparedStatementCacheSize = preparedStatementCacheSize;
+        this.preparedStatementCacheThreshold = preparedStatementCacheThreshold;
+        this.readOnly = readOnly;
+        if (minIdle < 0 || minIdle > maxPoolSize) {
+            throw new IllegalStateException("minIdle must be between 0 and maxPoolSize but was " + minIdle);
+        }
+        if (preparedStatementCacheSize < 0 || preparedStatementCacheThreshold < 0) {
+            throw new IllegalStateException("Prepared statement cache size and threshold must not be negative");
+        }
+    }
+
+    /**
+     * Fixed-size pool, every statement prepared on the server on first use.
+     */
+    public static PoolConfig defaults(String name) {
+        return new PoolConfig(name, DEFAULT_MAX_POOL_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_CONNECTION_TIMEOUT,
+                DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_LIFETIME, DEFAULT_PREPARED_STATEMENT_CACHE_SIZE,
+                DEFAULT_PREPARED_STATEMENT_CACHE_THRESHOLD, false);
+    }
+
+    /**
+     * Keeps the pool fixed-size, {@code minIdle} follows.
+     */
+    public PoolConfig withMaxPoolSize(int maxPoolSize) {
+        return new PoolConfig(name, maxPoolSize, maxPoolSize, connectionTimeout, idleTimeout, maxLifetime,
+                preparedStatementCacheSize, preparedStatementCacheThreshold, readOnly);
+    }
+
+    public PoolConfig withConnectionTimeout(Duration connectionTimeout) {
+        return new PoolConfig(name, maxPoolSize, minIdle, connectionTimeout, idleTimeout, maxLifetime,
+                preparedStatementCacheSize, preparedStatementCacheThreshold, readOnly);
+    }
+
+    public PoolConfig withPreparedStatementCache(int preparedStatementCacheSize, int preparedStatementCacheThreshold) {
+        return new PoolConfig(name, maxPoolSize, minIdle, connectionTimeout, idleTimeout, maxLifetime,
+                preparedStatementCacheSize, preparedStatementCacheThreshold, readOnly);
+    }
+
+    public PoolConfig withReadOnly(boolean readOnly) {
+        return new PoolConfig(name, maxPoolSize, minIdle, connectionTimeout, idleTimeout, maxLifetime,
+                preparedStatementCacheSize, preparedStatementCacheThreshold, readOnly);
+    }
+}
@@ -0,0 +1,24 @@
+package com.grid.queue.config;
+
+/**
+ * Point-in-time state of a {@link ConnectionPool}.
+ *
+ * @param active             connections handed out to callers
+ * @param idle               open connections waiting in the pool
+ * @param total              open connections
+ * @param maxPoolSize        connections the pool opens at most
+ * @param awaitingConnection callers blocked waiting for a connection. Above zero the pool is saturated
+ */
+public record PoolStats(int active, int idle, int total, int maxPoolSize, int awaitingConnection) {
+
+    /**
+     * @return share of the pool in use, {@code 1.0} when every connection is handed out
+     */
+    public double utilization() {
+        return (double) active / maxPoolSize;
+    }
+
+    public boolean saturated() {
+        return awaitingConnection > 0 || active >= maxPoolSize;
+    }
+}
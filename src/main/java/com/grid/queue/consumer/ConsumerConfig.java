@@ -0,0 +1,59 @@
+package com.grid.queue.consumer;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+import static java.lang.String.format;
+
+/**
+ * @param concurrency     number of workers polling the queue, and so the upper bound of messages processed at the same
+ *                        time. In {@code TRANSACTION} claim mode every in-flight message holds a connection of the
+ *                        consumer pool, so this should not exceed its {@code maxPoolSize}
+ * @param minPollInterval delay after the first empty poll
+ * @param maxPollInterval cap of the exponential backoff while the queue stays empty
+ * @param shutdownTimeout time given to in-flight messages to finish on {@link QueueConsumer#close()}
+ */
+public record ConsumerConfig(String queueName,
+                             int concurrency,
+                             Duration minPollInterval,
+                             Duration maxPollInterval,
+                             Duration shutdownTimeout) {
+    private static final int DEFAULT_CONCURRENCY = 10;
+    private static final Duration DEFAULT_MIN_POLL_INTERVAL = Duration.ofMillis(10);
+    private static final Duration DEFAULT_MAX_POLL_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    public ConsumerConfig(String queueName,
+                          int concurrency,
+                          Duration minPollInterval,
+                          Duration maxPollInterval,
+                          Duration shutdownTimeout) {
+        this.queueName = required("queueName", queueName);
+        this.concurrency = positive("concurrency", concurrency);
+        this.minPollInterval = required("minPollInterval", minPollInterval);
+        this.maxPollInterval = required("maxPollInterval", maxPollInterval);
+        this.shutdownTimeout = required("shutdownTimeout", shutdownTimeout);
+        if (minPollInterval.compareTo(maxPollInterval) > 0) {
+            throw new IllegalStateException(format("minPollInterval %s is greater than maxPollInterval %s",
+                    minPollInterval, maxPollInterval));
+        }
+    }
+
+    public static ConsumerConfig defaults(String queueName) {
+        return new ConsumerConfig(queueName, DEFAULT_CONCURRENCY,
+                DEFAULT_MIN_POLL_INTERVAL, DEFAULT_MAX_POLL_INTERVAL, DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    public ConsumerConfig withConcurrency(int concurrency) {
+        return new ConsumerConfig(queueName, concurrency, minPollInterval, maxPollInterval, shutdownTimeout);
+    }
+
+    public ConsumerConfig withPollInterval(Duration minPollInterval, Duration maxPollInterval) {
+        return new ConsumerConfig(queueName, concurrency, minPollInterval, maxPollInterval, shutdownTimeout);
+    }
+
+    public ConsumerConfig withShutdownTimeout(Duration shutdownTimeout) {
+        return new ConsumerConfig(queueName, concurrency, minPollInterval, maxPollInterval, shutdownTimeout);
+    }
+}
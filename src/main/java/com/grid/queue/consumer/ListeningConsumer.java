@@ -0,0 +1,87 @@
+package com.grid.queue.consumer;
+
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * Single-threaded consumer that drains a queue and then sleeps until the database notifies it about new messages.
+ * The safety poll interval bounds the wait in case a notification is lost, e.g. while reconnecting.
+ */
+public class ListeningConsumer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ListeningConsumer.class);
+
+    private final MessageRepository repository;
+    private final QueueNotifications notifications;
+    private final String queueName;
+    private final Task task;
+    private final Duration safetyPollInterval;
+    private final Thread worker;
+    private volatile boolean running;
+
+    public ListeningConsumer(MessageRepository repository,
+                             QueueNotifications notifications,
+                             String queueName,
+                             Task task,
+                             Duration safetyPollInterval) {
+        this.repository = required("repository", repository);
+        this.notifications = required("notifications", notifications);
+        this.queueName = required("queueName", queueName);
+        this.task = required("task", task);
+        this.safetyPollInterval = required("safetyPollInterval", safetyPollInterval);
+        this.worker = new Thread(this::run, "listening-consumer-" + queueName);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                final var seenVersion = notifications.version(queueName);
+                if (!processNext()) {
+                    notifications.await(queueName, seenVersion, safetyPollInterval);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a message was processed and the queue may hold more. A message whose task failed counts as
+     * processed, only an empty queue or a failed claim is a reason to wait
+     */
+    private boolean processNext() {
+        final var handedOut = new AtomicBoolean();
+        try {
+            return repository.processOldestTask(queueName, message -> {
+                handedOut.set(true);
+                task.execute(message);
+            }).isPresent();
+        } catch (Exception e) {
+            LOG.error("Error processing message from the queue {}", queueName, e);
+            return handedOut.get();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.grid.queue.consumer;
+
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs {@link ConsumerConfig#concurrency()} workers against a single queue. An idle worker backs off exponentially
+ * from {@link ConsumerConfig#minPollInterval()} to {@link ConsumerConfig#maxPollInterval()} and goes back to
+ * immediate polling as soon as it gets a message. With {@link QueueNotifications} the backoff is cut short
+ * when the queue is notified about new messages.
+ */
+public class QueueConsumer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueConsumer.class);
+
+    private final MessageRepository repository;
+    private final Task task;
+    private final ConsumerConfig config;
+    private final QueueNotifications notifications;
+    private final QueueSignal idleSignal = new QueueSignal();
+    private final ExecutorService workers;
+    private volatile boolean running;
+
+    public QueueConsumer(MessageRepository repository, Task task, ConsumerConfig config) {
+        this(repository, task, config, null);
+    }
+
+    public QueueConsumer(MessageRepository repository, Task task, ConsumerConfig config, QueueNotifications notifications) {
+        this.repository = required("repository", repository);
+        this.task = required("task", task);
+        this.config = required("config", config);
+        this.notifications = notifications;
+        this.workers = Executors.newFixedThreadPool(config.concurrency(),
+                WorkerThreads.factory("queue-consumer-" + config.queueName() + "-"));
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < config.concurrency(); i++) {
+            workers.execute(this::run);
+        }
+    }
+
+    private void run() {
+        var pollInterval = config.minPollInterval();
+        while (running) {
+            try {
+                final var seenVersion = idleVersion();
+                if (processNext()) {
+                    pollInterval = config.minPollInterval();
+                } else if (awaitIdle(seenVersion, pollInterval)) {
+                    pollInterval = config.minPollInterval();
+                } else {
+                    pollInterval = increase(pollInterval);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a message was processed and the queue may hold more. A message whose task failed counts as
+     * processed, so only an empty queue or a failed claim backs off
+     */
+    private boolean processNext() {
+        final var handedOut = new AtomicBoolean();
+        try {
+            return repository.processOldestTask(config.queueName(), message -> {
+                handedOut.set(true);
+                task.execute(message);
+            }).isPresent();
+        } catch (Exception e) {
+            LOG.error("Error processing message from the queue {}", config.queueName(), e);
+            return handedOut.get();
+        }
+    }
+
+    private long idleVersion() {
+        return notifications == null ? idleSignal.version() : notifications.version(config.queueName());
+    }
+
+    /**
+     * @return true if the wait was cut short by a notification
+     */
+    private boolean awaitIdle(long seenVersion, Duration pollInterval) throws InterruptedException {
+        if (notifications == null) {
+            return idleSignal.awaitChange(seenVersion, pollInterval.toMillis()) && running;
+        }
+        return notifications.await(config.queueName(), seenVersion, pollInterval) && running;
+    }
+
+    private Duration increase(Duration pollInterval) {
+        final var increased = pollInterval.multipliedBy(2);
+        return increased.compareTo(config.maxPollInterval()) > 0 ? config.maxPollInterval() : increased;
+    }
+
+    /**
+     * Stops polling and waits up to {@link ConsumerConfig#shutdownTimeout()} for in-flight messages to finish.
+     * Workers still busy after the timeout, or when the closing thread is interrupted, are interrupted.
+     */
+    @Override
+    public void close() {
+        running = false;
+        idleSignal.signal();
+        if (notifications != null) {
+            notifications.wakeUp(config.queueName());
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(config.shutdownTimeout().toMillis(), MILLISECONDS)) {
+                LOG.warn("Consumer of the queue {} didn't finish in-flight messages within {}. Interrupting workers",
+                        config.queueName(), config.shutdownTimeout());
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.grid.queue.consumer;
+
+import com.grid.queue.config.ConnectionPool;
+import com.grid.queue.config.DatabaseConnectionConfig;
+import com.impossibl.postgres.api.jdbc.PGConnection;
+import com.impossibl.postgres.api.jdbc.PGNotificationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * Listens to the {@value #CHANNEL} channel, which the database notifies with the queue name whenever messages are
+ * inserted, and wakes up consumers waiting on that queue. One connection is held for the lifetime of the listener, so
+ * it should come from a data source of its own rather than from the pool the consumers use.
+ */
+public class QueueNotifications implements AutoCloseable {
+    public static final String CHANNEL = "message_created";
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueNotifications.class);
+
+    private final DataSource dataSource;
+    private final Map<String, QueueSignal> signals = new ConcurrentHashMap<>();
+    private final PGNotificationListener listener = new Listener();
+    private Connection connection;
+    private boolean closed;
+
+    /**
+     * Listens on a dedicated connection that isn't taken from any pool.
+     */
+    public QueueNotifications(DatabaseConnectionConfig connectionConfig) {
+        this(ConnectionPool.unpooled(connectionConfig, "queue-notifications"));
+    }
+
+    /**
+     * @param dataSource source of the listening connection. A connection taken from a pool is never returned to it,
+     *                   which leaves the pool one connection short until the listener is closed
+     */
+    public QueueNotifications(DataSource dataSource) {
+        this.dataSource = required("dataSource", dataSource);
+    }
+
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("Queue notifications are closed");
+        }
+        if (connection != null) {
+            return;
+        }
+        try {
+            connection = dataSource.getConnection();
+            connection.unwrap(PGConnection.class).addNotificationListener(CHANNEL, listener);
+            try (final var statement = connection.createStatement()) {
+                statement.execute("LISTEN " + CHANNEL);
+            }
+        } catch (Exception e) {
+            closeConnection();
+            throw new RuntimeException("Error listening to channel " + CHANNEL, e);
+        }
+    }
+
+    /**
+     * @return current version of the queue signal, to be passed to {@link #await(String, long, Duration)} after
+     * the queue has been found empty
+     */
+    public long version(String queueName) {
+        return signal(queueName).version();
+    }
+
+    /**
+     * Waits until the queue is notified after {@code seenVersion} or the timeout elapses.
+     * If the listening connection was lost it is re-established first.
+     *
+     * @return true if the queue was notified
+     */
+    public boolean await(String queueName, long seenVersion, Duration timeout) throws InterruptedException {
+        reconnectIfLost();
+        return signal(queueName).awaitChange(seenVersion, timeout.toMillis());
+    }
+
+    /**
+     * Wakes up all consumers waiting on the queue, e.g. to let them observe a shutdown.
+     */
+    public void wakeUp(String queueName) {
+        signal(queueName).signal();
+    }
+
+    private QueueSignal signal(String queueName) {
+        return signals.computeIfAbsent(required("queueName", queueName), __ -> new QueueSignal());
+    }
+
+    private synchronized void reconnectIfLost() {
+        if (connection != null || closed) {
+            return;
+        }
+        try {
+            start();
+            LOG.info("Re-established listening to channel {}", CHANNEL);
+        } catch (Exception e) {
+            LOG.warn("Error re-establishing listening to channel {}. Falling back to polling", CHANNEL, e);
+        }
+    }
+
+    private synchronized void connectionLost() {
+        LOG.warn("Lost listening connection to channel {}", CHANNEL);
+        closeConnection();
+        signals.values().forEach(QueueSignal::signal);
+    }
+
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        final var listeningConnection = connection;
+        connection = null;
+        try (listeningConnection) {
+            listeningConnection.unwrap(PGConnection.class).removeNotificationListener(listener);
+            try (final var statement = listeningConnection.createStatement()) {
+                statement.execute("UNLISTEN " + CHANNEL);
+            }
+        } catch (Exception e) {
+            LOG.warn("Error closing listening connection", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeConnection();
+        signals.values().forEach(QueueSignal::signal);
+    }
+
+    private class Listener implements PGNotificationListener {
+
+        @Override
+        public void notification(int processId, String channelName, String payload) {
+            signal(payload).signal();
+        }
+
+        @Override
+        public void closed() {
+            if (!isClosed()) {
+                connectionLost();
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,28 @@
+package com.grid.queue.consumer;
+
+/**
+ * Versioned wake-up signal of a single queue. A waiter remembers the version it has seen before polling the queue,
+ * so a notification arriving between the poll and the wait is not lost.
+ */
+class QueueSignal {
+    private long version;
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized void signal() {
+        version++;
+        notifyAll();
+    }
+
+    synchronized boolean awaitChange(long seenVersion, long timeoutMillis) throws InterruptedException {
+        final var deadline = System.currentTimeMillis() + timeoutMillis;
+        var remaining = timeoutMillis;
+        while (version == seenVersion && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return version != seenVersion;
+    }
+}
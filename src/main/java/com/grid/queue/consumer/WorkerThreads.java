@@ -0,0 +1,30 @@
+package com.grid.queue.consumer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates worker threads for consumers: virtual threads when the runtime supports them (Java 21+), platform threads
+ * otherwise. Virtual threads are looked up reflectively, so the library still compiles and runs on Java 17.
+ */
+final class WorkerThreads {
+
+    private WorkerThreads() {
+    }
+
+    static ThreadFactory factory(String namePrefix) {
+        try {
+            final var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return platformFactory(namePrefix);
+        }
+    }
+
+    private static ThreadFactory platformFactory(String namePrefix) {
+        final var counter = new AtomicLong();
+        return runnable -> new Thread(runnable, namePrefix + counter.getAndIncrement());
+    }
+}
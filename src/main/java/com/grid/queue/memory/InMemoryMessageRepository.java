@@ -0,0 +1,428 @@
+package com.grid.queue.memory;
+
+import com.grid.queue.message.BatchResult;
+import com.grid.queue.message.BatchTask;
+import com.grid.queue.message.ClaimMode;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.MessageRepositoryConfig;
+import com.grid.queue.message.MessageState;
+import com.grid.queue.message.Task;
+import com.grid.queue.metrics.QueueMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static com.grid.queue.message.MessageState.FAILED;
+import static com.grid.queue.message.MessageState.IN_PROGRESS;
+import static com.grid.queue.message.MessageState.PROCESSED;
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+import static java.lang.System.nanoTime;
+import static java.time.LocalDateTime.now;
+import static java.time.temporal.ChronoUnit.MICROS;
+import static java.util.Optional.empty;
+
+/**
+ * {@link MessageRepository} that keeps the queues in memory, for tests, local runs and low-latency in-process queues.
+ * Claim order, exclusive claims, per-key ordering, retries and dead-lettering follow {@link MessageRepositoryConfig}
+ * like the JDBC repository does. Messages are handed to the task {@link MessageState#IN_PROGRESS} in
+ * {@link ClaimMode#LEASE} mode and {@link MessageState#CREATED} otherwise. Processed messages aren't kept, whatever the
+ * ack mode; dead letters are available from {@link #deadLetters(String)}.
+ * <p>
+ * Each queue keeps its claimable messages in a lock-free skip list in claim order, and a message is claimed by the
+ * thread that removes it, so consumers of a queue never block each other. Messages with a partition key wait in a
+ * per-key queue behind the one message of their key that is claimable or in flight; keys are locked independently.
+ * <p>
+ * With a {@link MessageJournal} the waiting messages survive a crash of the process. Their dedup keys are taken again
+ * for the window starting at their creation; keys of processed messages don't survive a restart.
+ */
+public class InMemoryMessageRepository implements MessageRepository, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryMessageRepository.class);
+
+    private static final Comparator<Entry> CLAIM_ORDER = Comparator.comparingInt(Entry::priority).reversed()
+            .thenComparingLong(Entry::availableAt)
+            .thenComparingLong(Entry::createdAt)
+            .thenComparing(entry -> entry.message().id());
+
+    private static final Comparator<Message> KEY_ORDER = Comparator.comparing(Message::createdAt)
+            .thenComparing(Message::id);
+
+    private final MessageRepositoryConfig config;
+    private final QueueMetrics metrics;
+    private final MessageJournal journal;
+    private final Map<String, QueueState> queues = new ConcurrentHashMap<>();
+
+    public InMemoryMessageRepository() {
+        this(MessageRepositoryConfig.defaults());
+    }
+
+    public InMemoryMessageRepository(MessageRepositoryConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * @param journal restores the messages it recovered and logs every change from now on, {@code null} keeps the
+     *                messages in memory only
+     */
+    public InMemoryMessageRepository(MessageRepositoryConfig config, MessageJournal journal) {
+        this.config = required("config", config);
+        this.metrics = config.metrics();
+        this.journal = journal;
+        if (journal != null) {
+            for (var message : journal.recovered()) {
+                takeDedupKey(message, message.createdAt().toInstant());
+                if (message.state() == FAILED) {
+                    queue(message.queueName()).deadLetters.add(message);
+                } else {
+                    enqueue(message);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Optional<Message> processOldestTask(String queueName, Task task) {
+        required("queueName", queueName);
+        final var claimed = claim(queueName, 1);
+        if (claimed.isEmpty()) {
+            if (config.logMessages()) {
+                LOG.info("[{}] Cancel task. Message queue is empty", now());
+            }
+            return empty();
+        }
+        final var message = claimed.get(0);
+        if (config.logMessages()) {
+            LOG.info("[{}] START. Execute Message[{}] State[{}]", now(), message.id(), message.state());
+        }
+        final var start = nanoTime();
+        try {
+            task.execute(message);
+        } catch (Throwable e) {
+            metrics.executed(queueName, 1, nanoTime() - start);
+            metrics.failed(queueName, 1);
+            fail(message, String.valueOf(e));
+            throw rethrow("Error processing task", e);
+        }
+        metrics.executed(queueName, 1, nanoTime() - start);
+        final var processedMessage = complete(message);
+        if (config.logMessages()) {
+            LOG.info("[{}] FINISH. Execute Message[{}] State[{}]", now(), processedMessage.id(), processedMessage.state());
+        }
+        return Optional.of(processedMessage);
+    }
+
+    @Override
+    public List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch) {
+        required("queueName", queueName);
+        positive("maxBatch", maxBatch);
+        final var messages = claim(queueName, maxBatch);
+        if (messages.isEmpty()) {
+            return List.of();
+        }
+        if (config.logMessages()) {
+            LOG.info("[{}] START. Execute batch of {} Messages", now(), messages.size());
+        }
+        final var start = nanoTime();
+        final BatchResult result;
+        try {
+            result = required("batchResult", task.execute(messages));
+        } catch (Throwable e) {
+            metrics.executed(queueName, messages.size(), nanoTime() - start);
+            metrics.failed(queueName, messages.size());
+            messages.forEach(message -> fail(message, String.valueOf(e)));
+            throw rethrow("Error processing batch task", e);
+        }
+        metrics.executed(queueName, messages.size(), nanoTime() - start);
+        final var processedMessages = new ArrayList<Message>(messages.size());
+        for (var message : messages) {
+            processedMessages.add(result.isFailed(message.id())
+                    ? message.updateState(fail(message, "Reported as failed by the batch task").state())
+                    : complete(message));
+        }
+        final var failed = (int) processedMessages.stream().filter(message -> message.state() != PROCESSED).count();
+        if (failed > 0) {
+            metrics.failed(queueName, failed);
+        }
+        if (config.logMessages()) {
+            LOG.info("[{}] FINISH. Execute batch of {} Messages. Processed [{}] Failed [{}]",
+                    now(), messages.size(), messages.size() - failed, failed);
+        }
+        return processedMessages;
+    }
+
+    /**
+     * Removes up to {@code limit} claimable messages from the head of the queue. A message belongs to the thread that
+     * removed it from the skip list.
+     * <p>
+     * Within a priority the messages are ordered by {@code availableAt}, so the first one that isn't available yet ends
+     * the priority and the claim continues with the next lower one. Delayed messages cost a skip per priority, not a
+     * visit each.
+     */
+    private List<Message> claim(String queueName, int limit) {
+        final var start = nanoTime();
+        final var queue = queues.get(queueName);
+        final var claimed = new ArrayList<Message>();
+        if (queue != null) {
+            final var now = epochMicros(Instant.now());
+            var entry = queue.claimable.ceiling(Entry.FIRST);
+            while (entry != null && claimed.size() < limit) {
+                if (entry.availableAt() > now) {
+                    entry = entry.priority() == Integer.MIN_VALUE ? null : queue.claimable.ceiling(Entry.first(entry.priority() - 1));
+                    continue;
+                }
+                if (queue.claimable.remove(entry)) {
+                    queue.waiting.decrementAndGet();
+                    claimed.add(config.claimMode() == ClaimMode.LEASE ? entry.message().updateState(IN_PROGRESS) : entry.message());
+                }
+                entry = queue.claimable.higher(entry);
+            }
+        }
+        metrics.claimed(queueName, claimed.size(), nanoTime() - start);
+        return claimed;
+    }
+
+    /**
+     * Errors are failed like exceptions, so the message and its key are never left claimed, and then rethrown as they
+     * are.
+     */
+    private static RuntimeException rethrow(String description, Throwable e) {
+        if (e instanceof Error error) {
+            throw error;
+        }
+        return new RuntimeException(description, e);
+    }
+
+    private Message complete(Message message) {
+        final var start = nanoTime();
+        try {
+            if (journal != null) {
+                journal.remove(message.id());
+            }
+        } finally {
+            release(message);
+        }
+        metrics.committed(message.queueName(), nanoTime() - start);
+        return message.updateState(PROCESSED);
+    }
+
+    /**
+     * Counts a failed attempt and either puts the message back with the {@link com.grid.queue.message.RetryPolicy}
+     * backoff, in front of the rest of its key, or moves it to the dead letters.
+     */
+    private Message fail(Message message, String error) {
+        final var retryPolicy = config.retryPolicy();
+        final var attempts = message.attempts() + 1;
+        final var deadLetter = attempts >= retryPolicy.maxAttempts();
+        final var availableAt = deadLetter ? message.availableAt() : ZonedDateTime.now().plus(backoff(message.attempts()));
+        final var failedMessage = new Message(message.id(), message.queueName(), deadLetter ? FAILED : CREATED, message.payload(),
+                message.createdAt(), availableAt, message.priority(), attempts, error, message.partitionKey(), message.dedupKey());
+        if (journal != null) {
+            journal.put(failedMessage);
+        }
+        final var queue = queue(message.queueName());
+        if (deadLetter) {
+            queue.deadLetters.add(failedMessage);
+            release(failedMessage);
+        } else {
+            queue.waiting.incrementAndGet();
+            if (failedMessage.partitionKey() != null) {
+                queue.keys.computeIfPresent(failedMessage.partitionKey(), (key, state) -> state.makeClaimable(queue, failedMessage));
+            } else {
+                queue.claimable.add(new Entry(failedMessage));
+            }
+        }
+        return failedMessage;
+    }
+
+    private Duration backoff(int previousAttempts) {
+        final var retryPolicy = config.retryPolicy();
+        final var millis = Math.min(retryPolicy.initialBackoff().toMillis() * Math.pow(retryPolicy.multiplier(), Math.min(previousAttempts, 64)),
+                retryPolicy.maxBackoff().toMillis());
+        return Duration.ofMillis((long) millis);
+    }
+
+    /**
+     * Lets the next message of the key be claimed once the current one is done with.
+     */
+    private void release(Message message) {
+        if (message.partitionKey() == null) {
+            return;
+        }
+        final var queue = queue(message.queueName());
+        queue.keys.computeIfPresent(message.partitionKey(), (key, state) -> {
+            final var next = state.waiting.poll();
+            return next == null ? null : state.makeClaimable(queue, next);
+        });
+    }
+
+    @Override
+    public boolean add(Message message) {
+        required("message", message);
+        if (!takeDedupKey(message, Instant.now())) {
+            return false;
+        }
+        if (journal != null) {
+            journal.put(message);
+        }
+        enqueue(message);
+        return true;
+    }
+
+    @Override
+    public int addAll(Collection<Message> messages) {
+        required("messages", messages);
+        var added = 0;
+        for (var message : messages) {
+            if (add(message)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Takes the dedup key of the message for the dedup window starting at {@code takenAt}, unless another message holds
+     * it. Keys whose window is over are swept once per window.
+     *
+     * @return whether the key was free or the message has none
+     */
+    private boolean takeDedupKey(Message message, Instant takenAt) {
+        if (message.dedupKey() == null) {
+            return true;
+        }
+        final var queue = queue(message.queueName());
+        final var now = System.currentTimeMillis();
+        final var window = config.dedup().window().toMillis();
+        final var nextSweep = queue.nextDedupSweep.get();
+        if (now >= nextSweep && queue.nextDedupSweep.compareAndSet(nextSweep, now + window)) {
+            queue.dedupKeys.values().removeIf(expiresAt -> expiresAt <= now);
+        }
+        final var taken = new AtomicBoolean();
+        queue.dedupKeys.compute(message.dedupKey(), (key, expiresAt) -> {
+            if (expiresAt != null && expiresAt > now) {
+                return expiresAt;
+            }
+            taken.set(true);
+            return takenAt.toEpochMilli() + window;
+        });
+        return taken.get();
+    }
+
+    private void enqueue(Message message) {
+        final var queue = queue(message.queueName());
+        queue.waiting.incrementAndGet();
+        if (message.partitionKey() == null) {
+            queue.claimable.add(new Entry(message));
+            return;
+        }
+        queue.keys.compute(message.partitionKey(), (key, state) -> {
+            if (state == null) {
+                return new KeyState().makeClaimable(queue, message);
+            }
+            if (KEY_ORDER.compare(message, state.head.message()) < 0 && queue.claimable.remove(state.head)) {
+                // added out of order ahead of the claimable head of its key, which hasn't been claimed yet
+                state.waiting.add(state.head.message());
+                return state.makeClaimable(queue, message);
+            }
+            state.waiting.add(message);
+            return state;
+        });
+    }
+
+    @Override
+    public Map<String, Long> backlog() {
+        final var backlog = new LinkedHashMap<String, Long>();
+        queues.forEach((queueName, queue) -> {
+            final var waiting = queue.waiting.get();
+            if (waiting > 0) {
+                backlog.put(queueName, waiting);
+            }
+        });
+        return backlog;
+    }
+
+    /**
+     * @return messages of the queue that ran out of attempts, oldest failure first
+     */
+    public List<Message> deadLetters(String queueName) {
+        final var queue = queues.get(required("queueName", queueName));
+        return queue == null ? List.of() : List.copyOf(queue.deadLetters);
+    }
+
+    private QueueState queue(String queueName) {
+        final var queue = queues.get(queueName);
+        return queue != null ? queue : queues.computeIfAbsent(queueName, __ -> new QueueState());
+    }
+
+    private static long epochMicros(Instant instant) {
+        return MICROS.between(Instant.EPOCH, instant);
+    }
+
+    @Override
+    public void close() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private static final class QueueState {
+        private final ConcurrentSkipListSet<Entry> claimable = new ConcurrentSkipListSet<>(CLAIM_ORDER);
+        private final Map<String, KeyState> keys = new ConcurrentHashMap<>();
+        private final Queue<Message> deadLetters = new ConcurrentLinkedQueue<>();
+        private final AtomicLong waiting = new AtomicLong();
+        private final Map<String, Long> dedupKeys = new ConcurrentHashMap<>();
+        private final AtomicLong nextDedupSweep = new AtomicLong();
+    }
+
+    /**
+     * Messages of one partition key. Only {@code head} is claimable or in flight, guarded by the map entry of the key.
+     */
+    private static final class KeyState {
+        private final PriorityQueue<Message> waiting = new PriorityQueue<>(KEY_ORDER);
+        private Entry head;
+
+        private KeyState makeClaimable(QueueState queue, Message message) {
+            head = new Entry(message);
+            queue.claimable.add(head);
+            return this;
+        }
+    }
+
+    /**
+     * A claimable message with its claim order fields. An entry without a message only marks a position in the order.
+     */
+    private record Entry(Message message, int priority, long availableAt, long createdAt) {
+        private static final Entry FIRST = first(Integer.MAX_VALUE);
+
+        private Entry(Message message) {
+            this(message, message.priority(), epochMicros(message.availableAt().toInstant()), epochMicros(message.createdAt().toInstant()));
+        }
+
+        /**
+         * @return position ahead of every message with the priority
+         */
+        private static Entry first(int priority) {
+            return new Entry(null, priority, Long.MIN_VALUE, Long.MIN_VALUE);
+        }
+    }
+}
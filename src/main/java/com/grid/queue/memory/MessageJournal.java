@@ -0,0 +1,281 @@
+package com.grid.queue.memory;
+
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageBody;
+import com.grid.queue.message.MessageState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.time.temporal.ChronoUnit.MICROS;
+
+/**
+ * Append-only, memory-mapped log of the messages of an {@link InMemoryMessageRepository}. Every waiting or dead-lettered
+ * message is written when it's added or rescheduled, and a removal is written once it's processed, so the waiting
+ * messages can be restored after the process crashes. Claims aren't logged: a message that was being processed during
+ * the crash is delivered again.
+ * <p>
+ * Writes go to the page cache through the mapping, so they survive a crash of the process without a system call per
+ * record. They're forced to disk on {@link #close()}; an operating system crash may lose the latest records.
+ * <p>
+ * The log is split into stripes, one file each, and a message is always written to the stripe of its id. Threads
+ * writing different messages mostly take different stripe locks, and the records of a message stay in order.
+ * <p>
+ * {@link #open(Path)} replays the log and rewrites it with only the live messages, so the log doesn't grow forever
+ * across restarts.
+ */
+public class MessageJournal implements AutoCloseable {
+    private static final int STRIPES = 8;
+    private static final int REGION_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final Stripe[] stripes;
+    private final List<Message> recovered;
+
+    private MessageJournal(Stripe[] stripes, List<Message> recovered) {
+        this.stripes = stripes;
+        this.recovered = recovered;
+    }
+
+    /**
+     * @param path directory of the stripe files, created if missing
+     */
+    public static MessageJournal open(Path path) {
+        required("path", path);
+        try {
+            Files.createDirectories(path);
+            final var stripes = new Stripe[STRIPES];
+            final var recovered = new ArrayList<Message>();
+            for (int i = 0; i < STRIPES; i++) {
+                final var stripePath = path.resolve(i + ".log");
+                final var live = Files.exists(stripePath) ? replay(stripePath) : new LinkedHashMap<UUID, Message>();
+                final var compacting = path.resolve(i + ".log.compacting");
+                final var stripe = new Stripe(FileChannel.open(compacting, CREATE, TRUNCATE_EXISTING, READ, WRITE));
+                live.values().forEach(message -> stripe.append(PUT, encode(message)));
+                stripe.region.force();
+                Files.move(compacting, stripePath, REPLACE_EXISTING, ATOMIC_MOVE);
+                stripes[i] = stripe;
+                recovered.addAll(live.values());
+            }
+            return new MessageJournal(stripes, List.copyOf(recovered));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening message journal " + path, e);
+        }
+    }
+
+    /**
+     * @return messages that were waiting or dead-lettered when the journal was last written
+     */
+    public List<Message> recovered() {
+        return recovered;
+    }
+
+    public void put(Message message) {
+        final var payload = encode(message);
+        stripe(message.id()).append(PUT, payload);
+    }
+
+    public void remove(UUID messageId) {
+        final var bytes = ByteBuffer.allocate(2 * Long.BYTES)
+                .putLong(messageId.getMostSignificantBits())
+                .putLong(messageId.getLeastSignificantBits())
+                .array();
+        stripe(messageId).append(REMOVE, bytes);
+    }
+
+    private Stripe stripe(UUID messageId) {
+        return stripes[Math.floorMod(messageId.hashCode(), STRIPES)];
+    }
+
+    private static final class Stripe {
+        private final FileChannel channel;
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        private Stripe(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.regionStart = 0;
+            this.region = channel.map(READ_WRITE, 0, REGION_SIZE);
+        }
+
+        /**
+         * Writes the record body first and its length last. A record torn by a crash has length 0, which ends the
+         * replay.
+         */
+        private synchronized void append(byte type, byte[] payload) {
+            final var length = 1 + payload.length;
+            if (region.remaining() < HEADER_SIZE + length + HEADER_SIZE) {
+                remap(HEADER_SIZE + length + HEADER_SIZE);
+            }
+            final var position = region.position();
+            region.position(position + HEADER_SIZE);
+            region.put(type);
+            region.put(payload);
+            region.putInt(position, length);
+        }
+
+        private void remap(int required) {
+            try {
+                region.force();
+                regionStart += region.position();
+                region = channel.map(READ_WRITE, regionStart, Math.max(REGION_SIZE, required));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error growing message journal", e);
+            }
+        }
+
+        private synchronized void close() throws IOException {
+            region.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Records follow each other without gaps, so the file is read in windows of up to 2 GB, each starting at the first
+     * record that didn't fit into the previous one.
+     */
+    private static Map<UUID, Message> replay(Path path) throws IOException {
+        final var live = new LinkedHashMap<UUID, Message>();
+        try (final var channel = FileChannel.open(path, READ)) {
+            final var size = channel.size();
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                final var window = channel.map(READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position));
+                while (window.remaining() >= HEADER_SIZE) {
+                    final var start = window.position();
+                    final var length = window.getInt();
+                    if (length <= 0) {
+                        return live;
+                    }
+                    if (length > window.remaining()) {
+                        window.position(start);
+                        break;
+                    }
+                    final var type = window.get();
+                    final var payload = new byte[length - 1];
+                    window.get(payload);
+                    if (type == PUT) {
+                        final var message = decode(payload);
+                        live.put(message.id(), message);
+                    } else if (type == REMOVE) {
+                        final var ids = ByteBuffer.wrap(payload);
+                        live.remove(new UUID(ids.getLong(), ids.getLong()));
+                    }
+                }
+                if (window.position() == 0) {
+                    return live;
+                }
+                position += window.position();
+            }
+        }
+        return live;
+    }
+
+    private static byte[] encode(Message message) {
+        final var bytes = new ByteArrayOutputStream(256);
+        try (final var out = new DataOutputStream(bytes)) {
+            out.writeLong(message.id().getMostSignificantBits());
+            out.writeLong(message.id().getLeastSignificantBits());
+            writeString(out, message.queueName());
+            writeString(out, message.state().name());
+            writeString(out, message.payload().asString());
+            out.writeLong(MICROS.between(Instant.EPOCH, message.createdAt().toInstant()));
+            out.writeLong(MICROS.between(Instant.EPOCH, message.availableAt().toInstant()));
+            out.writeInt(message.priority());
+            out.writeInt(message.attempts());
+            writeString(out, message.lastError());
+            writeString(out, message.partitionKey());
+            writeString(out, message.dedupKey());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error encoding message " + message.id(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Message decode(byte[] payload) throws IOException {
+        try (final var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            final var id = new UUID(in.readLong(), in.readLong());
+            final var queueName = readString(in);
+            final var state = MessageState.valueOf(readString(in));
+            final var body = MessageBody.raw(readString(in));
+            final var createdAt = fromEpochMicros(in.readLong());
+            final var availableAt = fromEpochMicros(in.readLong());
+            final var priority = in.readInt();
+            final var attempts = in.readInt();
+            final var lastError = readString(in);
+            final var partitionKey = readString(in);
+            final var dedupKey = readString(in);
+            return new Message(id, queueName, state, body, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+        }
+    }
+
+    private static ZonedDateTime fromEpochMicros(long micros) {
+        return Instant.EPOCH.plus(micros, MICROS).atZone(ZoneOffset.systemDefault());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final var bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final var length = in.readInt();
+        return length < 0 ? null : new String(in.readNBytes(length), UTF_8);
+    }
+
+    /**
+     * Forces and closes every stripe, even if closing an earlier one fails.
+     */
+    @Override
+    public void close() {
+        IOException failure = null;
+        for (var stripe : stripes) {
+            try {
+                stripe.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Error closing message journal", failure);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.grid.queue.message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Collects acknowledgements of leased messages and hands them to the writer in batches, so many consumers share one
+ * update and one commit. A batch is written once it holds {@link AckBufferConfig#maxBatch()} acknowledgements or its
+ * oldest one has waited {@link AckBufferConfig#flushInterval()}. When the buffer is full, {@link #add} blocks until the
+ * flusher catches up. {@link #close()} writes everything that was added before it.
+ */
+class AckBuffer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AckBuffer.class);
+
+    private final AckBufferConfig config;
+    private final Consumer<List<Ack>> writer;
+    private final BlockingQueue<Ack> pending;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    AckBuffer(AckBufferConfig config, Consumer<List<Ack>> writer) {
+        this.config = required("config", config);
+        this.writer = required("writer", writer);
+        this.pending = new ArrayBlockingQueue<>(config.capacity());
+        this.flusher = new Thread(this::flushUntilClosed, "ack-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    void start() {
+        flusher.start();
+    }
+
+    void add(String queueName, Collection<UUID> messageIds, UUID leaseId) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Acknowledgement buffer is closed");
+            }
+            for (var messageId : messageIds) {
+                pending.put(new Ack(queueName, messageId, leaseId));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for space in the acknowledgement buffer", e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void flushUntilClosed() {
+        while (!closed || !pending.isEmpty()) {
+            try {
+                final var batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private List<Ack> nextBatch() throws InterruptedException {
+        final var batch = new ArrayList<Ack>();
+        final var first = pending.poll(config.flushInterval().toNanos(), NANOSECONDS);
+        if (first == null) {
+            return batch;
+        }
+        batch.add(first);
+        final var deadline = nanoTime() + config.flushInterval().toNanos();
+        while (batch.size() < config.maxBatch()) {
+            final var remaining = deadline - nanoTime();
+            final var next = remaining > 0 ? pending.poll(remaining, NANOSECONDS) : null;
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    /**
+     * A failed write isn't retried. The messages stay leased and return to the queue once their lease expires.
+     */
+    private void write(List<Ack> batch) {
+        try {
+            writer.accept(batch);
+        } catch (Exception e) {
+            LOG.error("Error writing {} acknowledgements. The messages will be redelivered after their lease expires", batch.size(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    record Ack(String queueName, UUID messageId, UUID leaseId) {
+    }
+}
@@ -0,0 +1,30 @@
+package com.grid.queue.message;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * @param capacity      acknowledgements waiting to be written. Consumers block when the buffer is full
+ * @param maxBatch      acknowledgements written by a single update at most
+ * @param flushInterval how long an acknowledgement waits at most for the batch to fill up
+ */
+public record AckBufferConfig(int capacity, int maxBatch, Duration flushInterval) {
+    private static final int DEFAULT_CAPACITY = 10_000;
+    private static final int DEFAULT_MAX_BATCH = 500;
+    private static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(5);
+
+    public AckBufferConfig(int capacity, int maxBatch, Duration flushInterval) {
+        this.capacity = positive("capacity", capacity);
+        this.maxBatch = positive("maxBatch", maxBatch);
+        this.flushInterval = required("flushInterval", flushInterval);
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalStateException("flushInterval must be positive but was " + flushInterval);
+        }
+    }
+
+    public static AckBufferConfig defaults() {
+        return new AckBufferConfig(DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_FLUSH_INTERVAL);
+    }
+}
@@ -0,0 +1,19 @@
+package com.grid.queue.message;
+
+/**
+ * What happens to a message in the {@code message} table once it has been processed.
+ */
+public enum AckMode {
+    /**
+     * The row is kept with state {@link MessageState#PROCESSED}.
+     */
+    UPDATE,
+    /**
+     * The row is deleted, so the table only holds the backlog.
+     */
+    DELETE,
+    /**
+     * The row is deleted and copied to {@code message_archive} in the same statement.
+     */
+    ARCHIVE
+}
@@ -0,0 +1,30 @@
+package com.grid.queue.message;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * Outcome of a {@link BatchTask}. Messages listed as failed are retried according to the {@link RetryPolicy}, the rest
+ * of the batch is marked processed.
+ */
+public record BatchResult(Set<UUID> failed) {
+
+    public BatchResult(Set<UUID> failed) {
+        this.failed = Set.copyOf(required("failed", failed));
+    }
+
+    public static BatchResult success() {
+        return new BatchResult(Set.of());
+    }
+
+    public static BatchResult failed(Collection<UUID> failed) {
+        return new BatchResult(Set.copyOf(required("failed", failed)));
+    }
+
+    public boolean isFailed(UUID messageId) {
+        return failed.contains(messageId);
+    }
+}
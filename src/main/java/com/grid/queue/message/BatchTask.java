@@ -0,0 +1,7 @@
+package com.grid.queue.message;
+
+import java.util.List;
+
+public interface BatchTask {
+    BatchResult execute(List<Message> messages);
+}
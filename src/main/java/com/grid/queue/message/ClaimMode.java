@@ -0,0 +1,13 @@
+package com.grid.queue.message;
+
+public enum ClaimMode {
+    /**
+     * The claimed row stays locked and the transaction stays open while the task is executed.
+     */
+    TRANSACTION,
+    /**
+     * The row is moved to {@link MessageState#IN_PROGRESS} with a time-limited lease in a short transaction,
+     * the task is executed without holding a connection and the result is acknowledged separately.
+     */
+    LEASE
+}
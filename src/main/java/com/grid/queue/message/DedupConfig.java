@@ -0,0 +1,34 @@
+package com.grid.queue.message;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * @param window    how long a dedup key keeps rejecting messages of its queue after the message that took it was added
+ * @param cacheSize dedup keys this process remembers to reject duplicates without asking the database. {@code 0}
+ *                  disables the cache
+ */
+public record DedupConfig(Duration window, int cacheSize) {
+    private static final Duration DEFAULT_WINDOW = Duration.ofDays(1);
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    public DedupConfig(Duration window, int cacheSize) {
+        this.window = required("window", window);
+        this.cacheSize = cacheSize;
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalStateException("window must be positive but was " + window);
+        }
+        if (cacheSize < 0) {
+            throw new IllegalStateException("cacheSize must not be negative but was " + cacheSize);
+        }
+    }
+
+    public static DedupConfig defaults() {
+        return new DedupConfig(DEFAULT_WINDOW, DEFAULT_CACHE_SIZE);
+    }
+
+    public DedupConfig withWindow(Duration window) {
+        return new DedupConfig(window, cacheSize);
+    }
+}
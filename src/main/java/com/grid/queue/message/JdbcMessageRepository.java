@@ -1,111 +1,425 @@
 package com.grid.queue.message;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.grid.queue.metrics.QueueMetrics;
+import com.impossibl.postgres.api.jdbc.PGConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import static com.grid.queue.message.ClaimMode.LEASE;
+import static com.grid.queue.message.ClaimMode.TRANSACTION;
 import static com.grid.queue.message.MessageState.PROCESSED;
+import static com.grid.queue.validation.Validation.positive;
 import static com.grid.queue.validation.Validation.required;
-import static com.impossibl.postgres.api.jdbc.PGType.JSONB;
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.LocalDateTime.now;
 import static java.util.Optional.empty;
+import static java.util.UUID.randomUUID;
 
-public class JdbcMessageRepository implements MessageRepository {
+public class JdbcMessageRepository implements MessageRepository, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(JdbcMessageRepository.class);
 
-    private static final String GET_LAST_MESSAGE_QUERY = """
+    /**
+     * Finds an unfinished message with the same partition key that has to go first: one that is in progress or one
+     * that is older. Ties on {@code created_at} are broken by id, so exactly one message of a key is eligible.
+     */
+    private static final String PARTITION_KEY_PREDECESSOR_QUERY = """
+            SELECT 1
+            FROM message predecessor
+            WHERE predecessor.queue_name = message.queue_name
+              AND predecessor.partition_key = message.partition_key
+              AND predecessor.state IN ('CREATED', 'IN_PROGRESS')
+              AND (predecessor.state = 'IN_PROGRESS'
+                OR (predecessor.created_at, predecessor.id) < (message.created_at, message.id))""";
+
+    private static final String GET_LAST_MESSAGE_QUERY = format("""
             SELECT
               id,
               queue_name,
               state,
               body,
-              created_at
+              body_compressed,
+              body_offloaded,
+              created_at,
+              available_at,
+              priority,
+              attempts,
+              last_error,
+              partition_key,
+              dedup_key
             FROM message
             WHERE state = 'CREATED'
-            ORDER BY created_at ASC
+              AND queue_name = ?
+              AND available_at <= now()
+              AND (partition_key IS NULL OR NOT EXISTS (%s))
+            ORDER BY priority DESC, available_at ASC
             LIMIT 1
             FOR UPDATE SKIP LOCKED
+            """, PARTITION_KEY_PREDECESSOR_QUERY);
+
+    private static final String GET_OLDEST_MESSAGES_QUERY = format("""
+            SELECT
+              id,
+              queue_name,
+              state,
+              body,
+              body_compressed,
+              body_offloaded,
+              created_at,
+              available_at,
+              priority,
+              attempts,
+              last_error,
+              partition_key,
+              dedup_key
+            FROM message
+            WHERE state = 'CREATED'
+              AND queue_name = ?
+              AND available_at <= now()
+              AND (partition_key IS NULL OR NOT EXISTS (%s))
+            ORDER BY priority DESC, available_at ASC
+            LIMIT ?
+            FOR UPDATE SKIP LOCKED
+            """, PARTITION_KEY_PREDECESSOR_QUERY);
+
+    private static final String MARK_PROCESSED_QUERY = """
+            UPDATE message
+            SET state = 'PROCESSED',
+                locked_until = NULL,
+                locked_by = NULL,
+                lease_id = NULL
+            WHERE %s
+            """;
+
+    private static final String DELETE_PROCESSED_QUERY = """
+            DELETE FROM message
+            WHERE %s
+            """;
+
+    /**
+     * Offloaded bodies are archived compressed. Their {@code message_payload} rows are deleted by the delete trigger
+     * of the message table once the statement is done.
+     */
+    private static final String ARCHIVE_PROCESSED_QUERY = """
+            WITH processed AS (
+              DELETE FROM message
+              WHERE %s
+              RETURNING id, queue_name, body, body_compressed, body_offloaded, created_at
+            )
+            INSERT INTO message_archive (id, queue_name, body, body_compressed, created_at)
+            SELECT processed.id, processed.queue_name, processed.body, COALESCE(processed.body_compressed, payload.body), processed.created_at
+            FROM processed
+            LEFT JOIN message_payload payload ON payload.message_id = processed.id AND processed.body_offloaded
+            """;
+
+    private static final String FAIL_MESSAGES_QUERY = """
+            UPDATE message
+            SET state = CASE WHEN attempts + 1 >= ? THEN 'FAILED' ELSE 'CREATED' END,
+                attempts = attempts + 1,
+                last_error = ?,
+                available_at = now() + LEAST(?::float8 * power(?::float8, LEAST(attempts, 64)), ?::float8) * INTERVAL '1 millisecond',
+                locked_until = NULL,
+                locked_by = NULL,
+                lease_id = NULL
+            WHERE %s
+            RETURNING id, state
             """;
 
-    private static final String UPDATE_MESSAGE_STATE_QUERY = """
+    private static final String TRANSACTION_CLAIM_CONDITION = """
+            id = ANY(?)""";
+
+    /**
+     * Matches a message only under the lease it was claimed with. Every claim writes a new {@code lease_id}, so a
+     * consumer whose lease expired can't acknowledge or fail the message once it's claimed again, not even by another
+     * thread of the same instance. The ids select the rows by index, the pairs of message and lease id fence them.
+     */
+    private static final String LEASE_CLAIM_CONDITION = """
+            id = ANY(?)
+              AND state = 'IN_PROGRESS'
+              AND (id, lease_id) IN (SELECT * FROM unnest(?::uuid[], ?::uuid[]))""";
+
+    /**
+     * Picks the claimable messages like {@link #GET_OLDEST_MESSAGES_QUERY} and leases them in the same statement. The
+     * pick is materialized, so it's locked and limited once rather than re-evaluated for every row of the update, and
+     * it's joined on the whole primary key, so every partition is probed by its index. {@code RETURNING} doesn't keep
+     * the order of the pick, so the claimed messages are sorted again.
+     */
+    private static final String LEASE_MESSAGES_QUERY = format("""
+            WITH picked AS MATERIALIZED (
+              SELECT id, created_at
+              FROM message
+              WHERE state = 'CREATED'
+                AND queue_name = ?
+                AND available_at <= now()
+                AND (partition_key IS NULL OR NOT EXISTS (%s))
+              ORDER BY priority DESC, available_at ASC
+              LIMIT ?
+              FOR UPDATE SKIP LOCKED
+            ), claimed AS (
+              UPDATE message
+              SET state = 'IN_PROGRESS',
+                  locked_until = now() + ? * INTERVAL '1 millisecond',
+                  locked_by = ?,
+                  lease_id = ?
+              FROM picked
+              WHERE message.id = picked.id
+                AND message.created_at = picked.created_at
+              RETURNING
+                message.id,
+                message.queue_name,
+                message.state,
+                message.body,
+                message.body_compressed,
+                message.body_offloaded,
+                message.created_at,
+                message.available_at,
+                message.priority,
+                message.attempts,
+                message.last_error,
+                message.partition_key,
+                message.dedup_key
+            )
+            SELECT *
+            FROM claimed
+            ORDER BY priority DESC, available_at ASC
+            """, PARTITION_KEY_PREDECESSOR_QUERY);
+
+    /**
+     * An expired lease counts as a failed attempt, so a message that keeps crashing its consumer is eventually given
+     * up on. The lease itself has already delayed the retry, so the message is available right away.
+     */
+    private static final String RELEASE_EXPIRED_LEASES_QUERY = """
             UPDATE message
-            SET state = ?
-            WHERE id = ?
+            SET state = CASE WHEN attempts + 1 >= ? THEN 'FAILED' ELSE 'CREATED' END,
+                attempts = attempts + 1,
+                last_error = 'Lease expired',
+                locked_until = NULL,
+                locked_by = NULL,
+                lease_id = NULL
+            WHERE state = 'IN_PROGRESS'
+              AND locked_until < now()
             """;
 
+    /**
+     * Walks the distinct queue names of the pending-message index one index probe at a time, and counts the waiting
+     * messages of each queue up to a limit, so the cost is bounded by the number of queues rather than the backlog.
+     */
+    private static final String BACKLOG_QUERY = """
+            WITH RECURSIVE queues AS (
+              (SELECT queue_name
+               FROM message
+               WHERE state = 'CREATED'
+               ORDER BY queue_name
+               LIMIT 1)
+              UNION ALL
+              SELECT (SELECT message.queue_name
+                      FROM message
+                      WHERE message.state = 'CREATED'
+                        AND message.queue_name > queues.queue_name
+                      ORDER BY message.queue_name
+                      LIMIT 1)
+              FROM queues
+              WHERE queues.queue_name IS NOT NULL
+            )
+            SELECT
+              queues.queue_name,
+              waiting.backlog
+            FROM queues
+            CROSS JOIN LATERAL (
+              SELECT count(*) AS backlog
+              FROM (
+                SELECT 1
+                FROM message
+                WHERE message.state = 'CREATED'
+                  AND message.queue_name = queues.queue_name
+                LIMIT ?
+              ) capped
+            ) waiting
+            WHERE queues.queue_name IS NOT NULL
+            """;
+
+    /**
+     * Deeper backlogs are reported as this many messages.
+     */
+    static final int MAX_BACKLOG = 100_000;
+
     private static final String INSERT_MESSAGE_QUERY = """
             INSERT INTO message
-            (id, queue_name, state, body, created_at)
+            (id, queue_name, state, body, body_compressed, body_offloaded, created_at, available_at, priority, partition_key)
             VALUES
-            (?, ?, ?, ?, ?);
+            (?, ?, ?, ?::jsonb, ?, ?, ?, ?, ?, ?);
+            """;
+
+    private static final String INSERT_PAYLOAD_QUERY = """
+            INSERT INTO message_payload (message_id, body)
+            VALUES (?, ?)
+            """;
+
+    private static final String GET_PAYLOADS_QUERY = """
+            SELECT message_id, body
+            FROM message_payload
+            WHERE message_id = ANY(?)
+            """;
+
+    /**
+     * Takes the dedup key and inserts the message only if the key was free. A key whose window is over is taken over by
+     * the new message, so expired keys don't have to be deleted before they can be reused.
+     */
+    private static final String INSERT_DEDUPLICATED_MESSAGE_QUERY = """
+            WITH dedup AS (
+              INSERT INTO message_dedup AS taken (queue_name, dedup_key, message_id, expires_at)
+              VALUES (?, ?, ?, now() + ? * INTERVAL '1 millisecond')
+              ON CONFLICT (queue_name, dedup_key) DO UPDATE
+              SET message_id = excluded.message_id,
+                  expires_at = excluded.expires_at
+              WHERE taken.expires_at <= now()
+              RETURNING message_id
+            )
+            INSERT INTO message
+            (id, queue_name, state, body, body_compressed, body_offloaded, created_at, available_at, priority, partition_key, dedup_key)
+            SELECT ?::uuid, ?, ?, ?::jsonb, ?::bytea, ?::boolean, ?::timestamptz, ?::timestamptz, ?::integer, ?, ?
+            FROM dedup
+            """;
+
+    private static final String COPY_MESSAGES_QUERY = """
+            COPY message (id, queue_name, state, body, body_compressed, body_offloaded, created_at, available_at, priority, partition_key)
+            FROM STDIN
             """;
 
-    private final DataSource dataSource;
+    /**
+     * Batches at least this large are streamed with COPY, smaller ones are sent as a JDBC batch of INSERTs.
+     */
+    static final int COPY_THRESHOLD = 1000;
+
+    private static final String COPY_NULL = "\\N";
+
+    private static final int MAX_ERROR_LENGTH = 2000;
+
+    private static final String BATCH_FAILURE_ERROR = "Reported as failed by the batch task";
+
+    private final MessageDataSources dataSources;
     private final ObjectMapper mapper;
+    private final MessageRepositoryConfig config;
+    private final QueueMetrics metrics;
+    private final String acknowledgeQuery;
+    private final String failQuery;
+    private final AckBuffer ackBuffer;
+    private final RecentDedupKeys recentDedupKeys;
 
     public JdbcMessageRepository(DataSource dataSource, ObjectMapper mapper) {
-        this.dataSource = dataSource;
+        this(dataSource, mapper, MessageRepositoryConfig.defaults());
+    }
+
+    public JdbcMessageRepository(DataSource dataSource, ObjectMapper mapper, MessageRepositoryConfig config) {
+        this(MessageDataSources.shared(dataSource), mapper, config);
+    }
+
+    public JdbcMessageRepository(MessageDataSources dataSources, ObjectMapper mapper, MessageRepositoryConfig config) {
+        this.dataSources = required("dataSources", dataSources);
         this.mapper = mapper;
+        this.config = required("config", config);
+        this.metrics = config.metrics();
+        this.acknowledgeQuery = acknowledgeQuery(config);
+        this.failQuery = format(FAIL_MESSAGES_QUERY, claimCondition(config));
+        this.recentDedupKeys = new RecentDedupKeys(config.dedup());
+        this.ackBuffer = config.ackBuffer() == null ? null : new AckBuffer(config.ackBuffer(), this::writeAcknowledgements);
+        if (ackBuffer != null) {
+            ackBuffer.start();
+        }
+    }
+
+    private static String claimCondition(MessageRepositoryConfig config) {
+        return config.claimMode() == LEASE ? LEASE_CLAIM_CONDITION : TRANSACTION_CLAIM_CONDITION;
+    }
+
+    private static String acknowledgeQuery(MessageRepositoryConfig config) {
+        final var template = switch (config.ackMode()) {
+            case UPDATE -> MARK_PROCESSED_QUERY;
+            case DELETE -> DELETE_PROCESSED_QUERY;
+            case ARCHIVE -> ARCHIVE_PROCESSED_QUERY;
+        };
+        return format(template, claimCondition(config));
     }
 
     @Override
-    public Optional<Message> processOldestTask(Task task) {
-        try (final var connection = dataSource.getConnection();
+    public Optional<Message> processOldestTask(String queueName, Task task) {
+        required("queueName", queueName);
+        if (config.claimMode() == LEASE) {
+            return processLeasedTask(queueName, task);
+        }
+        try (final var connection = connection();
              final var getMessage = connection.prepareStatement(GET_LAST_MESSAGE_QUERY);
-             final var updateMessageState = connection.prepareStatement(UPDATE_MESSAGE_STATE_QUERY)) {
+             final var updateMessageState = connection.prepareStatement(acknowledgeQuery)) {
             try {
                 connection.setAutoCommit(false);
-                final var result = processMessage(getMessage, updateMessageState, task);
-                connection.commit();
-                return result;
+                getMessage.setString(1, queueName);
+                final var claimStart = nanoTime();
+                final List<Message> messages;
+                try (final var resultSet = getMessage.executeQuery()) {
+                    messages = messagesFromResultSet(connection, resultSet);
+                }
+                metrics.claimed(queueName, messages.size(), nanoTime() - claimStart);
+                if (messages.isEmpty()) {
+                    logEmptyQueue();
+                    connection.commit();
+                    return empty();
+                }
+                return Optional.of(executeTask(connection, messages.get(0), task, updateMessageState));
             } catch (Exception e) {
                 connection.rollback();
                 throw e;
             }
         } catch (Exception e) {
-            throw new RuntimeException("Error getting the last message from the queue", e);
-        }
-    }
-
-    private Optional<Message> processMessage(PreparedStatement getMessage,
-                                             PreparedStatement updateMessageState,
-                                             Task task) throws SQLException, JsonProcessingException {
-        final var resultSet = getMessage.executeQuery();
-        if (resultSet.next()) {
-            return Optional.of(fromResultSet(resultSet))
-                    .map(message -> executeTask(message, task, updateMessageState));
-        } else {
-            LOG.info("[{}] Cancel task. Message queue is empty", now());
-            return empty();
+            throw new RuntimeException("Error getting the last message from the queue " + queueName, e);
         }
     }
 
-    private Message executeTask(Message message, Task task, PreparedStatement updateMessageState) {
+    private Message executeTask(Connection connection, Message message, Task task, PreparedStatement updateMessageState) {
         try {
-            LOG.info("[{}] START. Execute Message[{}] State[{}]", now(), message.id(), message.state());
-            task.execute(message);
-            updateMessageState.setString(1, PROCESSED.name());
-            updateMessageState.setObject(2, message.id());
+            logStart(message);
+            try {
+                executeTimed(message.queueName(), 1, () -> execute(task, message));
+            } catch (Exception e) {
+                fail(connection, List.of(message.id()), null, errorOf(e));
+                connection.commit();
+                throw e;
+            }
+            final var ackStart = nanoTime();
+            setIds(updateMessageState, 1, new UUID[]{message.id()});
             int updated = updateMessageState.executeUpdate();
             if (updated != 1) {
                 throw new IllegalStateException();
             }
+            updateMessageState.getConnection().commit();
+            metrics.committed(message.queueName(), nanoTime() - ackStart);
             var processedMessage = message.updateState(PROCESSED);
-            LOG.info("[{}] FINISH. Execute Message[{}] State[{}]", now(), processedMessage.id(), processedMessage.state());
+            logFinish(processedMessage);
             return processedMessage;
         } catch (Exception e) {
             throw new RuntimeException("Error processing task", e);
@@ -113,29 +427,727 @@ public class JdbcMessageRepository implements MessageRepository {
     }
 
     @Override
-    public void add(Message message) {
-        try (final var connection = dataSource.getConnection();
-             final var statement = connection.prepareStatement(INSERT_MESSAGE_QUERY)) {
-            final var createdAt = Timestamp.valueOf(message.createdAt().toLocalDateTime());
-            statement.setObject(1, message.id());
-            statement.setString(2, message.queueName());
-            statement.setString(3, message.state().name());
-            statement.setObject(4, message.body().toString(), JSONB);
-            statement.setObject(5, createdAt);
-            statement.executeUpdate();
+    public List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch) {
+        required("queueName", queueName);
+        positive("maxBatch", maxBatch);
+        if (config.claimMode() == LEASE) {
+            return processLeasedTasks(queueName, task, maxBatch);
+        }
+        try (final var connection = connection();
+             final var getMessages = connection.prepareStatement(GET_OLDEST_MESSAGES_QUERY);
+             final var updateMessagesState = connection.prepareStatement(acknowledgeQuery)) {
+            try {
+                connection.setAutoCommit(false);
+                getMessages.setString(1, queueName);
+                getMessages.setInt(2, maxBatch);
+                final var claimStart = nanoTime();
+                final List<Message> messages;
+                try (final var resultSet = getMessages.executeQuery()) {
+                    messages = messagesFromResultSet(connection, resultSet);
+                }
+                metrics.claimed(queueName, messages.size(), nanoTime() - claimStart);
+                if (messages.isEmpty()) {
+                    connection.commit();
+                    return List.of();
+                }
+                return executeBatchTask(connection, queueName, messages, task, updateMessagesState);
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error getting the oldest messages from the queue " + queueName, e);
+        }
+    }
+
+    private List<Message> executeBatchTask(Connection connection,
+                                           String queueName,
+                                           List<Message> messages,
+                                           BatchTask task,
+                                           PreparedStatement updateMessagesState) throws Exception {
+        logBatchStart(messages);
+        final BatchResult result;
+        try {
+            result = required("batchResult", executeTimed(queueName, messages.size(), () -> task.execute(List.copyOf(messages))));
+        } catch (Exception e) {
+            fail(connection, messages.stream().map(Message::id).toList(), null, errorOf(e));
+            connection.commit();
+            throw e;
+        }
+        final var processedIds = messages.stream()
+                .map(Message::id)
+                .filter(id -> !result.isFailed(id))
+                .toArray(UUID[]::new);
+        final var failedIds = messages.stream().map(Message::id).filter(result::isFailed).toList();
+        recordFailed(queueName, failedIds.size());
+        final var ackStart = nanoTime();
+        final var failedStates = failedIds.isEmpty() ? Map.<UUID, MessageState>of() : fail(connection, failedIds, null, BATCH_FAILURE_ERROR);
+        requireFailed(failedIds, failedStates);
+        if (processedIds.length > 0) {
+            setIds(updateMessagesState, 1, processedIds);
+            int updated = updateMessagesState.executeUpdate();
+            if (updated != processedIds.length) {
+                throw new IllegalStateException(format("Expected to update %d messages but updated %d", processedIds.length, updated));
+            }
+        }
+        updateMessagesState.getConnection().commit();
+        metrics.committed(queueName, nanoTime() - ackStart);
+        final var processedMessages = messages.stream()
+                .map(message -> message.updateState(result.isFailed(message.id()) ? failedStates.get(message.id()) : PROCESSED))
+                .toList();
+        logBatchFinish(messages.size(), processedIds.length);
+        return processedMessages;
+    }
+
+    private Optional<Message> processLeasedTask(String queueName, Task task) {
+        final var leaseId = randomUUID();
+        final var claimed = claim(queueName, 1, leaseId);
+        if (claimed.isEmpty()) {
+            logEmptyQueue();
+            return empty();
+        }
+        final var message = claimed.get(0);
+        logStart(message);
+        try {
+            executeTimed(queueName, 1, () -> execute(task, message));
+        } catch (Exception e) {
+            fail(List.of(message.id()), leaseId, errorOf(e));
+            throw new RuntimeException("Error processing task", e);
+        }
+        acknowledge(queueName, List.of(message.id()), leaseId);
+        final var processedMessage = message.updateState(PROCESSED);
+        logFinish(processedMessage);
+        return Optional.of(processedMessage);
+    }
+
+    private List<Message> processLeasedTasks(String queueName, BatchTask task, int maxBatch) {
+        final var leaseId = randomUUID();
+        final var messages = claim(queueName, maxBatch, leaseId);
+        if (messages.isEmpty()) {
+            return List.of();
+        }
+        logBatchStart(messages);
+        final BatchResult result;
+        try {
+            result = required("batchResult", executeTimed(queueName, messages.size(), () -> task.execute(messages)));
+        } catch (Exception e) {
+            fail(messages.stream().map(Message::id).toList(), leaseId, errorOf(e));
+            throw new RuntimeException("Error processing batch task", e);
+        }
+        final var processedIds = messages.stream().map(Message::id).filter(id -> !result.isFailed(id)).toList();
+        final var failedIds = messages.stream().map(Message::id).filter(result::isFailed).toList();
+        recordFailed(queueName, failedIds.size());
+        final var failedStates = failedIds.isEmpty() ? Map.<UUID, MessageState>of() : fail(failedIds, leaseId, BATCH_FAILURE_ERROR);
+        acknowledge(queueName, processedIds, leaseId);
+        requireFailed(failedIds, failedStates);
+        final var processedMessages = messages.stream()
+                .map(message -> message.updateState(result.isFailed(message.id()) ? failedStates.get(message.id()) : PROCESSED))
+                .toList();
+        logBatchFinish(messages.size(), processedIds.size());
+        return processedMessages;
+    }
+
+    /**
+     * Runs the task and records its execution time. A task that throws counts all its messages as failed.
+     */
+    private <T> T executeTimed(String queueName, int count, Callable<T> task) throws Exception {
+        final var start = nanoTime();
+        try {
+            return task.call();
+        } catch (Exception e) {
+            recordFailed(queueName, count);
+            throw e;
+        } finally {
+            metrics.executed(queueName, count, nanoTime() - start);
+        }
+    }
+
+    private static Message execute(Task task, Message message) {
+        task.execute(message);
+        return message;
+    }
+
+    private Map<UUID, MessageState> fail(Collection<UUID> messageIds, UUID leaseId, String error) {
+        try (final var connection = connection()) {
+            return fail(connection, messageIds, leaseId, error);
+        } catch (Exception e) {
+            throw new RuntimeException("Error recording failed attempt of messages " + messageIds, e);
+        }
+    }
+
+    /**
+     * Counts a failed attempt and delays the next one according to the {@link RetryPolicy}. Messages that have run out
+     * of attempts are moved to {@link MessageState#FAILED}.
+     *
+     * @param leaseId lease the messages were claimed with, {@code null} in {@link ClaimMode#TRANSACTION} mode
+     * @return new state of every failed message
+     */
+    private Map<UUID, MessageState> fail(Connection connection, Collection<UUID> messageIds, UUID leaseId, String error) throws SQLException {
+        final var retryPolicy = config.retryPolicy();
+        try (final var statement = connection.prepareStatement(failQuery)) {
+            statement.setInt(1, retryPolicy.maxAttempts());
+            statement.setString(2, error);
+            statement.setLong(3, retryPolicy.initialBackoff().toMillis());
+            statement.setDouble(4, retryPolicy.multiplier());
+            statement.setLong(5, retryPolicy.maxBackoff().toMillis());
+            final var ids = messageIds.toArray(UUID[]::new);
+            if (config.claimMode() == LEASE) {
+                setLeases(statement, 6, ids, leaseIds(leaseId, ids.length));
+            } else {
+                setIds(statement, 6, ids);
+            }
+            final var states = new HashMap<UUID, MessageState>();
+            try (final var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    states.put(UUID.fromString(resultSet.getString("id")), MessageState.valueOf(resultSet.getString("state")));
+                }
+            }
+            return states;
+        }
+    }
+
+    /**
+     * A failed attempt has to be recorded like an acknowledgement. It's missing when the lease of the message expired
+     * during the task, and then the lease reaper counts the attempt instead.
+     */
+    private static void requireFailed(Collection<UUID> failedIds, Map<UUID, MessageState> failedStates) {
+        if (failedStates.size() != failedIds.size()) {
+            throw new IllegalStateException(format("Lease expired before the failure was recorded. Recorded %d of %d failed Messages %s",
+                    failedStates.size(), failedIds.size(), failedIds));
+        }
+    }
+
+    private static String errorOf(Exception e) {
+        final var error = String.valueOf(e);
+        return error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+
+    private void recordFailed(String queueName, int count) {
+        if (count > 0) {
+            metrics.failed(queueName, count);
+        }
+    }
+
+    /**
+     * Moves up to {@code limit} of the oldest messages of the queue to {@link MessageState#IN_PROGRESS} and leases them
+     * to this consumer in a single round trip.
+     */
+    private List<Message> claim(String queueName, int limit, UUID leaseId) {
+        try (final var connection = connection();
+             final var leaseMessages = connection.prepareStatement(LEASE_MESSAGES_QUERY)) {
+            final var claimStart = nanoTime();
+            leaseMessages.setString(1, queueName);
+            leaseMessages.setInt(2, limit);
+            leaseMessages.setLong(3, config.leaseDuration().toMillis());
+            leaseMessages.setString(4, config.consumerId());
+            leaseMessages.setObject(5, leaseId);
+            final List<Message> messages;
+            try (final var resultSet = leaseMessages.executeQuery()) {
+                messages = messagesFromResultSet(connection, resultSet);
+            }
+            metrics.claimed(queueName, messages.size(), nanoTime() - claimStart);
+            return messages;
+        } catch (Exception e) {
+            throw new RuntimeException("Error claiming messages from the queue " + queueName, e);
+        }
+    }
+
+    private void acknowledge(String queueName, Collection<UUID> messageIds, UUID leaseId) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        if (ackBuffer != null) {
+            ackBuffer.add(queueName, messageIds, leaseId);
+            return;
+        }
+        final var ackStart = nanoTime();
+        final var ids = messageIds.toArray(UUID[]::new);
+        int updated = updateLeased(acknowledgeQuery, ids, leaseIds(leaseId, ids.length));
+        metrics.committed(queueName, nanoTime() - ackStart);
+        if (updated != messageIds.size()) {
+            throw new IllegalStateException(format("Lease expired before acknowledgement. Acknowledged %d of %d Messages %s",
+                    updated, messageIds.size(), messageIds));
+        }
+    }
+
+    /**
+     * Writes a batch of buffered acknowledgements. The consumers already got their messages back as processed, so
+     * acknowledgements that lost their lease can only be logged. Those messages will be processed again.
+     */
+    private void writeAcknowledgements(List<AckBuffer.Ack> acks) {
+        final var ackStart = nanoTime();
+        final var messageIds = acks.stream().map(AckBuffer.Ack::messageId).toArray(UUID[]::new);
+        final var leaseIds = acks.stream().map(AckBuffer.Ack::leaseId).toArray(UUID[]::new);
+        int updated = updateLeased(acknowledgeQuery, messageIds, leaseIds);
+        final var elapsed = nanoTime() - ackStart;
+        acks.stream().map(AckBuffer.Ack::queueName).distinct().forEach(queueName -> metrics.committed(queueName, elapsed));
+        if (updated != messageIds.length) {
+            LOG.warn("[{}] Lease expired before acknowledgement. Acknowledged {} of {} Messages", now(), updated, messageIds.length);
+        }
+    }
+
+    private int updateLeased(String query, UUID[] messageIds, UUID[] leaseIds) {
+        try (final var connection = connection();
+             final var statement = connection.prepareStatement(query)) {
+            setLeases(statement, 1, messageIds, leaseIds);
+            return statement.executeUpdate();
+        } catch (Exception e) {
+            throw new RuntimeException("Error updating leased messages " + Arrays.toString(messageIds), e);
+        }
+    }
+
+    /**
+     * Binds {@link #LEASE_CLAIM_CONDITION}: the message ids, then every message id paired with its lease id.
+     */
+    private static void setLeases(PreparedStatement statement, int parameterIndex, UUID[] messageIds, UUID[] leaseIds) throws SQLException {
+        setIds(statement, parameterIndex, messageIds);
+        setIds(statement, parameterIndex + 1, messageIds);
+        setIds(statement, parameterIndex + 2, leaseIds);
+    }
+
+    private static UUID[] leaseIds(UUID leaseId, int count) {
+        final var leaseIds = new UUID[count];
+        Arrays.fill(leaseIds, leaseId);
+        return leaseIds;
+    }
+
+    /**
+     * Binds the ids as a Java array, which the driver encodes itself. A {@link java.sql.Array} of pgjdbc-ng holds pooled
+     * buffers that binding already releases, so freeing it as well returned them to the pool twice and let another
+     * connection's messages be written over them.
+     */
+    private static void setIds(PreparedStatement statement, int parameterIndex, UUID[] ids) throws SQLException {
+        statement.setObject(parameterIndex, ids);
+    }
+
+    /**
+     * Returns messages whose lease has expired back to the queue, or moves them to {@link MessageState#FAILED} once
+     * they've run out of attempts.
+     *
+     * @return number of released messages
+     */
+    public int releaseExpiredLeases() {
+        try (final var connection = connection();
+             final var statement = connection.prepareStatement(RELEASE_EXPIRED_LEASES_QUERY)) {
+            statement.setInt(1, config.retryPolicy().maxAttempts());
+            return statement.executeUpdate();
+        } catch (Exception e) {
+            throw new RuntimeException("Error releasing expired leases", e);
+        }
+    }
+
+    /**
+     * Writes the buffered acknowledgements, if any, before returning.
+     */
+    @Override
+    public void close() {
+        if (ackBuffer != null) {
+            ackBuffer.close();
+        }
+    }
+
+    /**
+     * Counts the messages waiting in every queue, up to {@value #MAX_BACKLOG} per queue. The count is answered from the
+     * pending-message index and stops at the limit, so a metrics scraper can call it however deep the queues get.
+     */
+    @Override
+    public Map<String, Long> backlog() {
+        try (final var connection = connection(dataSources.stats());
+             final var statement = connection.prepareStatement(BACKLOG_QUERY)) {
+            statement.setInt(1, MAX_BACKLOG);
+            final var backlog = new LinkedHashMap<String, Long>();
+            try (final var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    backlog.put(resultSet.getString("queue_name"), resultSet.getLong("backlog"));
+                }
+            }
+            return backlog;
+        } catch (Exception e) {
+            throw new RuntimeException("Error counting the queue backlog", e);
+        }
+    }
+
+    @Override
+    public boolean add(Message message) {
+        if (recentDedupKeys.contains(message)) {
+            return false;
+        }
+        final var insert = new Insert(message, StoredBody.of(message.payload(), config.payload()));
+        try (final var connection = connection(dataSources.producer())) {
+            final var insertStart = nanoTime();
+            final boolean added;
+            if (insert.body().offloaded()) {
+                try {
+                    connection.setAutoCommit(false);
+                    added = insert(connection, insert);
+                    connection.commit();
+                } catch (Exception e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } else {
+                added = insert(connection, insert);
+            }
+            if (added) {
+                recentDedupKeys.added(message, insertStart);
+            }
+            return added;
         } catch (Exception e) {
             throw new RuntimeException("Error saving message " + message.id(), e);
         }
     }
 
-    private Message fromResultSet(ResultSet resultSet) throws SQLException, JsonProcessingException {
+    /**
+     * Adds the message within the transaction of the given connection, so it's enqueued atomically with the caller's
+     * own writes. The connection is neither committed nor closed, and consumers see the message, and get notified of
+     * it, only once the caller commits. The dedup key is taken in the same transaction, so it's freed again if the
+     * caller rolls back.
+     */
+    public boolean add(Connection connection, Message message) {
+        required("connection", connection);
+        if (recentDedupKeys.contains(message)) {
+            return false;
+        }
+        try {
+            return insert(connection, new Insert(message, StoredBody.of(message.payload(), config.payload())));
+        } catch (Exception e) {
+            throw new RuntimeException("Error saving message " + message.id(), e);
+        }
+    }
+
+    private boolean insert(Connection connection, Insert insert) throws SQLException {
+        if (insert.message().dedupKey() != null) {
+            try (final var statement = connection.prepareStatement(INSERT_DEDUPLICATED_MESSAGE_QUERY)) {
+                bindDeduplicatedInsert(statement, insert);
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+            }
+        } else {
+            try (final var statement = connection.prepareStatement(INSERT_MESSAGE_QUERY)) {
+                bindInsert(statement, 0, insert);
+                statement.executeUpdate();
+            }
+        }
+        insertPayloads(connection, List.of(insert));
+        return true;
+    }
+
+    @Override
+    public int addAll(Collection<Message> messages) {
+        required("messages", messages);
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        try (final var connection = connection(dataSources.producer())) {
+            try {
+                connection.setAutoCommit(false);
+                final var insertStart = nanoTime();
+                final var added = insertAll(connection, messages);
+                connection.commit();
+                added.forEach(message -> recentDedupKeys.added(message, insertStart));
+                return added.size();
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(format("Error saving batch of %d messages", messages.size()), e);
+        }
+    }
+
+    /**
+     * Adds the messages within the transaction of the given connection. Like {@link #add(Connection, Message)}, the
+     * connection is neither committed nor closed.
+     */
+    public int addAll(Connection connection, Collection<Message> messages) {
+        required("connection", connection);
+        required("messages", messages);
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        try {
+            return insertAll(connection, messages).size();
+        } catch (Exception e) {
+            throw new RuntimeException(format("Error saving batch of %d messages", messages.size()), e);
+        }
+    }
+
+    /**
+     * Messages without a dedup key are written by COPY or an INSERT batch; messages with one go through the dedup
+     * table in a separate batch. Offloaded bodies of the added messages follow in a batch of their own. COPY needs the
+     * pgjdbc-ng connection. A caller-supplied connection of another driver gets the INSERT batch, whose parameters are
+     * bound with standard JDBC types and cast in the statement.
+     *
+     * @return messages that were added
+     */
+    private List<Message> insertAll(Connection connection, Collection<Message> messages) throws SQLException {
+        final var unkeyed = new ArrayList<Insert>(messages.size());
+        final var keyed = new ArrayList<Insert>();
+        for (var message : messages) {
+            if (message.dedupKey() == null) {
+                unkeyed.add(new Insert(message, StoredBody.of(message.payload(), config.payload())));
+            } else if (!recentDedupKeys.contains(message)) {
+                keyed.add(new Insert(message, StoredBody.of(message.payload(), config.payload())));
+            }
+        }
+        if (unkeyed.size() < COPY_THRESHOLD || !connection.isWrapperFor(PGConnection.class)) {
+            insertBatch(connection, unkeyed);
+        } else {
+            copy(connection, unkeyed);
+        }
+        final var added = new ArrayList<Insert>(messages.size());
+        added.addAll(unkeyed);
+        added.addAll(insertDeduplicatedBatch(connection, keyed));
+        insertPayloads(connection, added);
+        return added.stream().map(Insert::message).toList();
+    }
+
+    private void insertBatch(Connection connection, Collection<Insert> inserts) throws SQLException {
+        if (inserts.isEmpty()) {
+            return;
+        }
+        try (final var statement = connection.prepareStatement(INSERT_MESSAGE_QUERY)) {
+            for (var insert : inserts) {
+                bindInsert(statement, 0, insert);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * @return inserts whose dedup key was free. A key repeated within the batch is taken by its first message
+     */
+    private List<Insert> insertDeduplicatedBatch(Connection connection, List<Insert> inserts) throws SQLException {
+        if (inserts.isEmpty()) {
+            return List.of();
+        }
+        try (final var statement = connection.prepareStatement(INSERT_DEDUPLICATED_MESSAGE_QUERY)) {
+            for (var insert : inserts) {
+                bindDeduplicatedInsert(statement, insert);
+                statement.addBatch();
+            }
+            final var updated = statement.executeBatch();
+            final var added = new ArrayList<Insert>(inserts.size());
+            for (int i = 0; i < inserts.size(); i++) {
+                if (updated[i] == 1) {
+                    added.add(inserts.get(i));
+                }
+            }
+            return added;
+        }
+    }
+
+    private void insertPayloads(Connection connection, Collection<Insert> inserts) throws SQLException {
+        final var offloaded = inserts.stream().filter(insert -> insert.body().offloaded()).toList();
+        if (offloaded.isEmpty()) {
+            return;
+        }
+        try (final var statement = connection.prepareStatement(INSERT_PAYLOAD_QUERY)) {
+            for (var insert : offloaded) {
+                statement.setObject(1, insert.message().id());
+                statement.setBytes(2, insert.body().compressed());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void copy(Connection connection, Collection<Insert> inserts) throws SQLException {
+        final var rows = new StringBuilder();
+        final var hex = HexFormat.of();
+        for (var insert : inserts) {
+            final var message = insert.message();
+            final var body = insert.body();
+            rows.append(message.id()).append('\t')
+                    .append(escapeCopyText(message.queueName())).append('\t')
+                    .append(message.state().name()).append('\t')
+                    .append(body.json() == null ? COPY_NULL : escapeCopyText(body.json())).append('\t')
+                    .append(body.compressed() == null || body.offloaded() ? COPY_NULL : "\\\\x" + hex.formatHex(body.compressed())).append('\t')
+                    .append(body.offloaded()).append('\t')
+                    .append(message.createdAt().toOffsetDateTime()).append('\t')
+                    .append(message.availableAt().toOffsetDateTime()).append('\t')
+                    .append(message.priority()).append('\t')
+                    .append(message.partitionKey() == null ? COPY_NULL : escapeCopyText(message.partitionKey())).append('\n');
+        }
+        final var data = new ByteArrayInputStream(rows.toString().getBytes(UTF_8));
+        connection.unwrap(PGConnection.class).copyFrom(COPY_MESSAGES_QUERY, data);
+    }
+
+    private static String escapeCopyText(String value) {
+        final var escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final var c = value.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\t' -> escaped.append("\\t");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private void bindDeduplicatedInsert(PreparedStatement statement, Insert insert) throws SQLException {
+        final var message = insert.message();
+        statement.setString(1, message.queueName());
+        statement.setString(2, message.dedupKey());
+        statement.setObject(3, message.id());
+        statement.setLong(4, config.dedup().window().toMillis());
+        bindInsert(statement, 4, insert);
+        statement.setString(15, message.dedupKey());
+    }
+
+    private void bindInsert(PreparedStatement statement, int offset, Insert insert) throws SQLException {
+        final var message = insert.message();
+        final var body = insert.body();
+        final var createdAt = Timestamp.valueOf(message.createdAt().toLocalDateTime());
+        final var availableAt = Timestamp.valueOf(message.availableAt().toLocalDateTime());
+        statement.setObject(offset + 1, message.id());
+        statement.setString(offset + 2, message.queueName());
+        statement.setString(offset + 3, message.state().name());
+        statement.setString(offset + 4, body.json());
+        statement.setBytes(offset + 5, body.offloaded() ? null : body.compressed());
+        statement.setBoolean(offset + 6, body.offloaded());
+        statement.setObject(offset + 7, createdAt);
+        statement.setObject(offset + 8, availableAt);
+        statement.setInt(offset + 9, message.priority());
+        statement.setString(offset + 10, message.partitionKey());
+    }
+
+    private Connection connection() throws SQLException {
+        return connection(dataSources.consumer());
+    }
+
+    private Connection connection(DataSource dataSource) throws SQLException {
+        final var start = nanoTime();
+        final var connection = dataSource.getConnection();
+        metrics.connectionAcquired(nanoTime() - start);
+        return connection;
+    }
+
+    private void logEmptyQueue() {
+        if (config.logMessages()) {
+            LOG.info("[{}] Cancel task. Message queue is empty", now());
+        }
+    }
+
+    private void logStart(Message message) {
+        if (config.logMessages()) {
+            LOG.info("[{}] START. Execute Message[{}] State[{}]", now(), message.id(), message.state());
+        }
+    }
+
+    private void logFinish(Message message) {
+        if (config.logMessages()) {
+            LOG.info("[{}] FINISH. Execute Message[{}] State[{}]", now(), message.id(), message.state());
+        }
+    }
+
+    private void logBatchStart(List<Message> messages) {
+        if (config.logMessages()) {
+            LOG.info("[{}] START. Execute batch of {} Messages", now(), messages.size());
+        }
+    }
+
+    private void logBatchFinish(int size, int processed) {
+        if (config.logMessages()) {
+            LOG.info("[{}] FINISH. Execute batch of {} Messages. Processed [{}] Failed [{}]", now(), size, processed, size - processed);
+        }
+    }
+
+    /**
+     * In {@link ClaimMode#TRANSACTION} mode an offloaded body is fetched on the claiming connection when the task first
+     * reads it, since that connection stays open until the task is acknowledged. A leased claim gives its connection
+     * back before the task runs, so {@link ClaimMode#LEASE} fetches the offloaded bodies of the claimed messages in one
+     * more query up front rather than taking a second connection per read.
+     */
+    private List<Message> messagesFromResultSet(Connection connection, ResultSet resultSet) throws SQLException {
+        final var messages = new ArrayList<Message>();
+        final var payloads = new HashMap<UUID, byte[]>();
+        while (resultSet.next()) {
+            messages.add(fromResultSet(connection, resultSet, payloads));
+        }
+        if (!payloads.isEmpty()) {
+            loadPayloads(connection, payloads);
+        }
+        return messages;
+    }
+
+    private Message fromResultSet(Connection connection, ResultSet resultSet, Map<UUID, byte[]> payloads) throws SQLException {
         var id = UUID.fromString(required("message.id", resultSet.getString("id")));
         var queueName = required("message.queue_name", resultSet.getString("queue_name"));
         var state = MessageState.valueOf(required("message.state", resultSet.getString("state")));
-        var bodyString = required("message.body", resultSet.getString("body"));
-        var body = mapper.readTree(bodyString);
-        var createdAtTimestamp = required("message.created_at", resultSet.getTimestamp("created_at", Calendar.getInstance(TimeZone.getTimeZone("UTC"))));
-        var createdAt = ZonedDateTime.ofInstant(createdAtTimestamp.toInstant(), ZoneOffset.systemDefault());
-        return new Message(id, queueName, state, body, createdAt);
+        var body = bodyFromResultSet(id, connection, resultSet, payloads);
+        var createdAt = timestamp(resultSet, "created_at");
+        var availableAt = timestamp(resultSet, "available_at");
+        var priority = resultSet.getInt("priority");
+        var attempts = resultSet.getInt("attempts");
+        var lastError = resultSet.getString("last_error");
+        var partitionKey = resultSet.getString("partition_key");
+        var dedupKey = resultSet.getString("dedup_key");
+        return new Message(id, queueName, state, body, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+    }
+
+    /**
+     * Compressed bodies are decompressed when the task first reads them. A leased offloaded body registers its id in
+     * {@code payloads}, which gets its compressed body before the message is handed out.
+     */
+    private MessageBody bodyFromResultSet(UUID id, Connection connection, ResultSet resultSet, Map<UUID, byte[]> payloads) throws SQLException {
+        final var json = resultSet.getString("body");
+        if (json != null) {
+            return MessageBody.raw(json, mapper);
+        }
+        final var compressed = resultSet.getBytes("body_compressed");
+        if (compressed != null) {
+            return MessageBody.deferred(() -> StoredBody.decompress(compressed), mapper);
+        }
+        if (!resultSet.getBoolean("body_offloaded")) {
+            throw new IllegalStateException("message.body must not be null");
+        }
+        if (config.claimMode() == TRANSACTION) {
+            return MessageBody.deferred(() -> StoredBody.decompress(loadPayload(connection, id)), mapper);
+        }
+        payloads.put(id, null);
+        return MessageBody.deferred(() -> StoredBody.decompress(payload(id, payloads.get(id))), mapper);
+    }
+
+    private static byte[] loadPayload(Connection connection, UUID id) {
+        final var payloads = new HashMap<UUID, byte[]>();
+        payloads.put(id, null);
+        try {
+            loadPayloads(connection, payloads);
+        } catch (SQLException e) {
+            throw new RuntimeException("Error loading the body of message " + id + ". It can only be read while its task runs", e);
+        }
+        return payload(id, payloads.get(id));
+    }
+
+    private static byte[] payload(UUID id, byte[] payload) {
+        if (payload == null) {
+            throw new IllegalStateException("Body of message " + id + " no longer exists");
+        }
+        return payload;
+    }
+
+    private static void loadPayloads(Connection connection, Map<UUID, byte[]> payloads) throws SQLException {
+        try (final var statement = connection.prepareStatement(GET_PAYLOADS_QUERY)) {
+            setIds(statement, 1, payloads.keySet().toArray(UUID[]::new));
+            try (final var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    payloads.put(UUID.fromString(resultSet.getString("message_id")), resultSet.getBytes("body"));
+                }
+            }
+        }
+    }
+
+    private static ZonedDateTime timestamp(ResultSet resultSet, String column) throws SQLException {
+        var timestamp = required("message." + column, resultSet.getTimestamp(column, Calendar.getInstance(TimeZone.getTimeZone("UTC"))));
+        return ZonedDateTime.ofInstant(timestamp.toInstant(), ZoneOffset.systemDefault());
+    }
+
+    private record Insert(Message message, StoredBody body) {
     }
 }
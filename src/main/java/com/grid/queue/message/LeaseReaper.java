@@ -0,0 +1,54 @@
+package com.grid.queue.message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.time.LocalDateTime.now;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Periodically returns messages with expired leases to the queue, so a crashed or stuck consumer
+ * doesn't keep its messages {@link MessageState#IN_PROGRESS} forever.
+ */
+public class LeaseReaper implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseReaper.class);
+
+    private final JdbcMessageRepository repository;
+    private final Duration interval;
+    private final ScheduledExecutorService scheduler;
+
+    public LeaseReaper(JdbcMessageRepository repository, Duration interval) {
+        this.repository = required("repository", repository);
+        this.interval = required("interval", interval);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::reap, interval.toMillis(), interval.toMillis(), MILLISECONDS);
+    }
+
+    private void reap() {
+        try {
+            int released = repository.releaseExpiredLeases();
+            if (released > 0) {
+                LOG.info("[{}] Released {} Messages with expired lease", now(), released);
+            }
+        } catch (Exception e) {
+            LOG.error("Error releasing expired leases", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
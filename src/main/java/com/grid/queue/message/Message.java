@@ -1,23 +1,103 @@
 package com.grid.queue.message;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.UUID;
 
 import static com.grid.queue.validation.Validation.required;
 import static java.time.temporal.ChronoUnit.MICROS;
 
-public record Message(UUID id, String queueName, MessageState state, JsonNode body, ZonedDateTime createdAt) {
+/**
+ * @param availableAt  the message isn't claimed before this moment
+ * @param priority     messages with a higher priority are claimed first. Equal priorities are claimed by {@code availableAt}
+ * @param attempts     number of failed processing attempts
+ * @param lastError    error of the last failed attempt, {@code null} if there was none
+ * @param partitionKey messages with the same key are processed one at a time in {@code createdAt} order. Messages
+ *                     without a key, {@code null}, are processed in parallel
+ * @param dedupKey     a message is only added if no other message of the queue was added with the same key within the
+ *                     dedup window. {@code null} never deduplicates
+ */
+public record Message(UUID id,
+                      String queueName,
+                      MessageState state,
+                      MessageBody payload,
+                      ZonedDateTime createdAt,
+                      ZonedDateTime availableAt,
+                      int priority,
+                      int attempts,
+                      String lastError,
+                      String partitionKey,
+                      String dedupKey) {
+    public static final int DEFAULT_PRIORITY = 0;
 
-    public Message(UUID id, String queueName, MessageState state, JsonNode body, ZonedDateTime createdAt) {
+    public Message(UUID id,
+                   String queueName,
+                   MessageState state,
+                   MessageBody payload,
+                   ZonedDateTime createdAt,
+                   ZonedDateTime availableAt,
+                   int priority,
+                   int attempts,
+                   String lastError,
+                   String partitionKey,
+                   String dedupKey) {
         this.id = required("id", id);
         this.queueName = required("queueName", queueName);
         this.state = required("state", state);
-        this.body = required("body", body);
+        this.payload = required("payload", payload);
         this.createdAt = required("createdAt", createdAt).truncatedTo(MICROS); // Postgres doesn't support nanoseconds precision
+        this.availableAt = required("availableAt", availableAt).truncatedTo(MICROS);
+        this.priority = priority;
+        this.attempts = attempts;
+        this.lastError = lastError;
+        this.partitionKey = partitionKey;
+        this.dedupKey = dedupKey;
+    }
+
+    public Message(UUID id, String queueName, MessageState state, MessageBody payload, ZonedDateTime createdAt) {
+        this(id, queueName, state, payload, createdAt, required("createdAt", createdAt), DEFAULT_PRIORITY, 0, null, null, null);
+    }
+
+    public Message(UUID id, String queueName, MessageState state, JsonNode body, ZonedDateTime createdAt) {
+        this(id, queueName, state, MessageBody.of(required("body", body)), createdAt);
+    }
+
+    /**
+     * @return body parsed into a tree. Use {@link #payload()} to read the raw body or bind it to a type without parsing
+     */
+    public JsonNode body() {
+        return payload.json();
     }
 
     public Message updateState(MessageState newState) {
-        return new Message(id, queueName, newState, body, createdAt);
+        return new Message(id, queueName, newState, payload, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+    }
+
+    /**
+     * @return copy of the message that becomes available {@code delay} after it was created
+     */
+    public Message withDelay(Duration delay) {
+        required("delay", delay);
+        if (delay.isNegative()) {
+            throw new IllegalStateException("delay must not be negative but was " + delay);
+        }
+        return withAvailableAt(createdAt.plus(delay));
+    }
+
+    public Message withAvailableAt(ZonedDateTime availableAt) {
+        return new Message(id, queueName, state, payload, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+    }
+
+    public Message withPriority(int priority) {
+        return new Message(id, queueName, state, payload, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+    }
+
+    public Message withPartitionKey(String partitionKey) {
+        return new Message(id, queueName, state, payload, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
+    }
+
+    public Message withDedupKey(String dedupKey) {
+        return new Message(id, queueName, state, payload, createdAt, availableAt, priority, attempts, lastError, partitionKey, dedupKey);
     }
 }
@@ -0,0 +1,148 @@
+package com.grid.queue.message;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Supplier;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JSON body of a {@link Message}. A body read from the database or created from serialized JSON keeps the raw text
+ * and is only parsed on first access to {@link #json()}, so tasks that forward the payload or bind it to their own
+ * type never build a {@link JsonNode} tree. A body stored compressed isn't even decompressed until it's first read.
+ * <p>
+ * A body offloaded to a separate table is fetched on first read too when it was claimed in
+ * {@link ClaimMode#TRANSACTION} mode, through the connection holding the claim, so it has to be read while the task
+ * runs. {@link ClaimMode#LEASE} claims fetch it up front instead, see {@link PayloadConfig}.
+ */
+public final class MessageBody {
+    private static final ObjectMapper DEFAULT_MAPPER = new ObjectMapper();
+
+    private final ObjectMapper mapper;
+    private final Supplier<String> loader;
+    private volatile String text;
+    private volatile JsonNode json;
+
+    private MessageBody(ObjectMapper mapper, Supplier<String> loader, String text, JsonNode json) {
+        this.mapper = required("mapper", mapper);
+        this.loader = loader;
+        this.text = text;
+        this.json = json;
+    }
+
+    public static MessageBody of(JsonNode json) {
+        return new MessageBody(DEFAULT_MAPPER, null, null, required("json", json));
+    }
+
+    public static MessageBody raw(String json) {
+        return raw(json, DEFAULT_MAPPER);
+    }
+
+    public static MessageBody raw(byte[] json) {
+        return raw(new String(required("json", json), UTF_8), DEFAULT_MAPPER);
+    }
+
+    public static MessageBody raw(String json, ObjectMapper mapper) {
+        return new MessageBody(mapper, null, required("json", json), null);
+    }
+
+    /**
+     * @param loader provides the JSON text on the first read of the body
+     */
+    static MessageBody deferred(Supplier<String> loader, ObjectMapper mapper) {
+        return new MessageBody(mapper, required("loader", loader), null, null);
+    }
+
+    /**
+     * @return body parsed into a tree. The tree is built on the first call and cached
+     */
+    public JsonNode json() {
+        var parsed = json;
+        if (parsed == null) {
+            try {
+                parsed = mapper.readTree(asString());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error parsing message body", e);
+            }
+            json = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Binds the body directly to the type, without building an intermediate tree.
+     */
+    public <T> T as(Class<T> type) {
+        try {
+            final var parsed = json;
+            return parsed == null ? mapper.readValue(asString(), type) : mapper.treeToValue(parsed, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error binding message body to " + type.getName(), e);
+        }
+    }
+
+    /**
+     * @return streaming parser over the body, for tasks that only need a few fields
+     */
+    public JsonParser parser() {
+        try {
+            final var parsed = json;
+            return parsed == null ? mapper.createParser(asString()) : mapper.treeAsTokens(parsed);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error creating message body parser", e);
+        }
+    }
+
+    public String asString() {
+        var serialized = text;
+        if (serialized == null) {
+            final var parsed = json;
+            serialized = parsed != null ? parsed.toString() : loader.get();
+            text = serialized;
+        }
+        return serialized;
+    }
+
+    public byte[] asBytes() {
+        return asString().getBytes(UTF_8);
+    }
+
+    public InputStream asStream() {
+        return new ByteArrayInputStream(asBytes());
+    }
+
+    /**
+     * Bodies are equal when their JSON is, regardless of formatting. Comparing a compressed body that hasn't been read
+     * yet decompresses it.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        return other instanceof MessageBody body && json().equals(body.json());
+    }
+
+    @Override
+    public int hashCode() {
+        return json().hashCode();
+    }
+
+    /**
+     * Doesn't load a deferred body, so logging a message costs no decompression.
+     */
+    @Override
+    public String toString() {
+        if (text == null && json == null) {
+            return "<deferred>";
+        }
+        return asString();
+    }
+}
@@ -0,0 +1,29 @@
+package com.grid.queue.message;
+
+import javax.sql.DataSource;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * Where {@link JdbcMessageRepository} gets its connections from. With separate pools, consumers that hold every
+ * connection of theirs, e.g. with long tasks in {@link ClaimMode#TRANSACTION} mode, don't make producers wait.
+ *
+ * @param producer enqueues messages
+ * @param consumer claims, acknowledges and fails messages, and loads offloaded bodies
+ * @param stats    answers {@link JdbcMessageRepository#backlog()}. May be a read replica, whose counts lag behind
+ */
+public record MessageDataSources(DataSource producer, DataSource consumer, DataSource stats) {
+
+    public MessageDataSources(DataSource producer, DataSource consumer, DataSource stats) {
+        this.producer = required("producer", producer);
+        this.consumer = required("consumer", consumer);
+        this.stats = required("stats", stats);
+    }
+
+    /**
+     * Everything goes through one pool.
+     */
+    public static MessageDataSources shared(DataSource dataSource) {
+        return new MessageDataSources(dataSource, dataSource, dataSource);
+    }
+}
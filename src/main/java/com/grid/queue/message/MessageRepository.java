@@ -1,9 +1,39 @@
 package com.grid.queue.message;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface MessageRepository {
-    Optional<Message> processOldestTask(Task task);
+    Optional<Message> processOldestTask(String queueName, Task task);
 
-    void add(Message message);
+    List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch);
+
+    /**
+     * @return {@code false} if the message wasn't added because another message of the queue took its
+     * {@link Message#dedupKey()} within the dedup window
+     */
+    boolean add(Message message);
+
+    /**
+     * Adds the message so that it's claimed no earlier than {@code delay} after its creation and ahead of available
+     * messages with a lower priority.
+     */
+    default boolean add(Message message, Duration delay, int priority) {
+        return add(message.withDelay(delay).withPriority(priority));
+    }
+
+    /**
+     * @return number of messages added. Messages whose {@link Message#dedupKey()} is taken are skipped like by
+     * {@link #add(Message)}
+     */
+    int addAll(Collection<Message> messages);
+
+    /**
+     * @return number of messages waiting to be processed, by queue name. Queues without waiting messages are omitted.
+     * Implementations may stop counting at a limit, so a very deep queue may be reported with fewer messages
+     */
+    Map<String, Long> backlog();
 }
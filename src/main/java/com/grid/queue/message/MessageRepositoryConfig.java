@@ -0,0 +1,101 @@
+package com.grid.queue.message;
+
+import com.grid.queue.metrics.QueueMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.util.UUID.randomUUID;
+
+/**
+ * @param ackBuffer   buffers acknowledgements and writes them in batches. Requires {@link ClaimMode#LEASE}, {@code null}
+ *                    acknowledges every message right away
+ * @param retryPolicy how failed messages are rescheduled and when they are given up on
+ * @param dedup       how long dedup keys of added messages reject duplicates
+ * @param payload     which bodies are stored compressed or outside the message table
+ * @param metrics     receives claim, execution, commit and connection wait timings
+ * @param logMessages whether every processed message or batch is logged at INFO. Turn it off at high throughput
+ */
+public record MessageRepositoryConfig(ClaimMode claimMode,
+                                      Duration leaseDuration,
+                                      String consumerId,
+                                      AckMode ackMode,
+                                      AckBufferConfig ackBuffer,
+                                      RetryPolicy retryPolicy,
+                                      DedupConfig dedup,
+                                      PayloadConfig payload,
+                                      QueueMetrics metrics,
+                                      boolean logMessages) {
+    private static final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(5);
+
+    public MessageRepositoryConfig(ClaimMode claimMode,
+                                   Duration leaseDuration,
+                                   String consumerId,
+                                   AckMode ackMode,
+                                   AckBufferConfig ackBuffer,
+                                   RetryPolicy retryPolicy,
+                                   DedupConfig dedup,
+                                   PayloadConfig payload,
+                                   QueueMetrics metrics,
+                                   boolean logMessages) {
+        this.claimMode = required("claimMode", claimMode);
+        this.leaseDuration = required("leaseDuration", leaseDuration);
+        this.consumerId = required("consumerId", consumerId);
+        this.ackMode = required("ackMode", ackMode);
+        this.ackBuffer = ackBuffer;
+        this.retryPolicy = required("retryPolicy", retryPolicy);
+        this.dedup = required("dedup", dedup);
+        this.payload = required("payload", payload);
+        this.metrics = required("metrics", metrics);
+        this.logMessages = logMessages;
+        if (leaseDuration.isNegative() || leaseDuration.isZero()) {
+            throw new IllegalStateException("leaseDuration must be positive but was " + leaseDuration);
+        }
+        if (ackBuffer != null && claimMode != ClaimMode.LEASE) {
+            throw new IllegalStateException("Buffered acknowledgements require the LEASE claim mode");
+        }
+    }
+
+    public static MessageRepositoryConfig defaults() {
+        var consumerId = ManagementFactory.getRuntimeMXBean().getName() + "/" + randomUUID();
+        return new MessageRepositoryConfig(ClaimMode.TRANSACTION, DEFAULT_LEASE_DURATION, consumerId, AckMode.UPDATE, null,
+                RetryPolicy.defaults(), DedupConfig.defaults(), PayloadConfig.inline(), QueueMetrics.noop(), true);
+    }
+
+    public MessageRepositoryConfig withLease(Duration leaseDuration) {
+        return new MessageRepositoryConfig(ClaimMode.LEASE, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withConsumerId(String consumerId) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withAckMode(AckMode ackMode) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withAckBuffer(AckBufferConfig ackBuffer) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withRetryPolicy(RetryPolicy retryPolicy) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withDedup(DedupConfig dedup) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withPayload(PayloadConfig payload) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withMetrics(QueueMetrics metrics) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+
+    public MessageRepositoryConfig withMessageLogging(boolean logMessages) {
+        return new MessageRepositoryConfig(claimMode, leaseDuration, consumerId, ackMode, ackBuffer, retryPolicy, dedup, payload, metrics, logMessages);
+    }
+}
@@ -2,5 +2,10 @@ package com.grid.queue.message;
 
 public enum MessageState {
     CREATED,
-    PROCESSED
+    IN_PROGRESS,
+    PROCESSED,
+    /**
+     * Dead letter. Processing failed {@link RetryPolicy#maxAttempts()} times and the message is no longer claimed.
+     */
+    FAILED
 }
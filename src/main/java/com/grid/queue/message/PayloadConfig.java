@@ -0,0 +1,37 @@
+package com.grid.queue.message;
+
+import static com.grid.queue.validation.Validation.positive;
+
+/**
+ * How message bodies are stored, by their size in UTF-8 bytes.
+ *
+ * @param compressionThreshold bodies at least this large are stored gzip-compressed instead of as JSONB, and are only
+ *                             decompressed when the task reads them
+ * @param offloadThreshold     bodies at least this large are stored compressed in a separate table, so claims scan a
+ *                             narrow message table. In {@link ClaimMode#TRANSACTION} mode such a body is fetched on
+ *                             the claiming connection when the task first reads it, so it can't be read once the task
+ *                             is done. A {@link ClaimMode#LEASE} claim has given its connection back by then, so it
+ *                             fetches the offloaded bodies of the whole batch in one more query, read or not
+ */
+public record PayloadConfig(int compressionThreshold, int offloadThreshold) {
+
+    public PayloadConfig(int compressionThreshold, int offloadThreshold) {
+        this.compressionThreshold = positive("compressionThreshold", compressionThreshold);
+        this.offloadThreshold = positive("offloadThreshold", offloadThreshold);
+    }
+
+    /**
+     * Stores every body as JSONB.
+     */
+    public static PayloadConfig inline() {
+        return new PayloadConfig(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public static PayloadConfig compressed(int compressionThreshold) {
+        return new PayloadConfig(compressionThreshold, Integer.MAX_VALUE);
+    }
+
+    public PayloadConfig withOffloadThreshold(int offloadThreshold) {
+        return new PayloadConfig(compressionThreshold, offloadThreshold);
+    }
+}
@@ -0,0 +1,93 @@
+package com.grid.queue.message;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.lang.System.nanoTime;
+
+/**
+ * Dedup keys this process added recently, so a producer retrying a message is turned away without a database round
+ * trip. Only keys of committed messages are remembered, and only until their window ends, so a key found here is
+ * certainly taken; a key that isn't found still has to be checked by the database. When the cache is full, new keys
+ * aren't remembered until expired keys make room again.
+ * <p>
+ * Every key is remembered for the same window, so keys expire in about the order they were added. They are queued in
+ * that order too, and eviction only looks at the head of the queue instead of scanning the whole cache.
+ */
+class RecentDedupKeys {
+    private final DedupConfig config;
+    private final Map<Key, Long> expiresAt;
+    private final Queue<Expiry> expiryOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    RecentDedupKeys(DedupConfig config) {
+        this.config = required("config", config);
+        this.expiresAt = new ConcurrentHashMap<>();
+    }
+
+    boolean contains(Message message) {
+        if (message.dedupKey() == null || config.cacheSize() == 0) {
+            return false;
+        }
+        final var key = new Key(message.queueName(), message.dedupKey());
+        final var expiry = expiresAt.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry - nanoTime() <= 0) {
+            expiresAt.remove(key, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the key of a message that was added. Must only be called after the message was committed.
+     *
+     * @param insertStart {@link System#nanoTime()} before the insert was sent, so the key is forgotten no later than the
+     *                    database releases it
+     */
+    void added(Message message, long insertStart) {
+        if (message.dedupKey() == null || config.cacheSize() == 0) {
+            return;
+        }
+        evictExpired();
+        if (expiresAt.size() >= config.cacheSize()) {
+            return;
+        }
+        final var key = new Key(message.queueName(), message.dedupKey());
+        final var expiry = insertStart + config.window().toNanos();
+        expiresAt.put(key, expiry);
+        expiryOrder.add(new Expiry(key, expiry));
+    }
+
+    /**
+     * Removes the expired keys at the head of the queue. One thread evicts at a time, the others don't wait for it. A
+     * key that was added again since keeps its later expiry.
+     */
+    private void evictExpired() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final var now = nanoTime();
+            Expiry head;
+            while ((head = expiryOrder.peek()) != null && head.expiresAt() - now <= 0) {
+                expiryOrder.poll();
+                expiresAt.remove(head.key(), head.expiresAt());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private record Key(String queueName, String dedupKey) {
+    }
+
+    private record Expiry(Key key, long expiresAt) {
+    }
+}
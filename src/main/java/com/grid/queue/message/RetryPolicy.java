@@ -0,0 +1,45 @@
+package com.grid.queue.message;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * How a message is rescheduled after a failed attempt. The n-th failure delays the next attempt by
+ * {@code initialBackoff * multiplier^(n-1)}, capped at {@code maxBackoff}.
+ *
+ * @param maxAttempts after this many failed attempts the message is moved to {@link MessageState#FAILED}
+ */
+public record RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double multiplier) {
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration DEFAULT_MAX_BACKOFF = Duration.ofMinutes(15);
+    private static final double DEFAULT_MULTIPLIER = 2;
+
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double multiplier) {
+        this.maxAttempts = positive("maxAttempts", maxAttempts);
+        this.initialBackoff = required("initialBackoff", initialBackoff);
+        this.maxBackoff = required("maxBackoff", maxBackoff);
+        this.multiplier = multiplier;
+        if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+            throw new IllegalStateException(
+                    "Expected 0 <= initialBackoff <= maxBackoff but was " + initialBackoff + " and " + maxBackoff);
+        }
+        if (multiplier < 1) {
+            throw new IllegalStateException("multiplier must be at least 1 but was " + multiplier);
+        }
+    }
+
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_MULTIPLIER);
+    }
+
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier);
+    }
+
+    public RetryPolicy withBackoff(Duration initialBackoff, Duration maxBackoff) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier);
+    }
+}
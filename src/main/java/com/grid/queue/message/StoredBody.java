@@ -0,0 +1,77 @@
+package com.grid.queue.message;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Body of a message in the form it's written to the database: JSONB text in {@code body}, gzip in
+ * {@code body_compressed}, or gzip in the {@code message_payload} table.
+ * <p>
+ * The database rejects text that isn't JSON when it casts {@code body} to JSONB, but can't look into gzip, so a body
+ * is checked with a streaming parse before it's compressed. A tree is never built for the check.
+ */
+record StoredBody(String json, byte[] compressed, boolean offloaded) {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static StoredBody of(MessageBody body, PayloadConfig config) {
+        final var json = body.asString();
+        if (json.length() < config.compressionThreshold() && json.length() < config.offloadThreshold()) {
+            // a UTF-8 encoding is never shorter than the number of chars, so the body is surely below both thresholds
+            return new StoredBody(json, null, false);
+        }
+        final var bytes = json.getBytes(UTF_8);
+        if (bytes.length >= config.offloadThreshold()) {
+            requireJson(bytes);
+            return new StoredBody(null, compress(bytes), true);
+        }
+        if (bytes.length >= config.compressionThreshold()) {
+            requireJson(bytes);
+            return new StoredBody(null, compress(bytes), false);
+        }
+        return new StoredBody(json, null, false);
+    }
+
+    /**
+     * Reads through a single JSON value, with nothing but whitespace after it.
+     */
+    private static void requireJson(byte[] bytes) {
+        try (final var parser = JSON_FACTORY.createParser(bytes)) {
+            if (parser.nextToken() == null) {
+                throw new JsonParseException(parser, "Message body is empty");
+            }
+            parser.skipChildren();
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Message body has content after its JSON value");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error parsing message body", e);
+        }
+    }
+
+    static byte[] compress(byte[] bytes) {
+        final var compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+        try (final var out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error compressing message body", e);
+        }
+        return compressed.toByteArray();
+    }
+
+    static String decompress(byte[] compressed) {
+        try (final var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return new String(in.readAllBytes(), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error decompressing message body", e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.grid.queue.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.toUnmodifiableMap;
+
+/**
+ * In-process {@link QueueMetrics} built on {@link LongAdder}s. Read it with {@link #snapshot()} and export the numbers
+ * to whatever monitoring system is in use.
+ */
+public class CountingQueueMetrics implements QueueMetrics {
+    private final Map<String, QueueCounters> queues = new ConcurrentHashMap<>();
+    private final Timer connectionWait = new Timer();
+
+    @Override
+    public void claimed(String queueName, int count, long nanos) {
+        final var counters = counters(queueName);
+        counters.claims.record(nanos);
+        counters.claimedMessages.add(count);
+        if (count == 0) {
+            counters.emptyPolls.increment();
+        }
+    }
+
+    @Override
+    public void executed(String queueName, int count, long nanos) {
+        counters(queueName).executions.record(nanos);
+    }
+
+    @Override
+    public void failed(String queueName, int count) {
+        counters(queueName).failures.add(count);
+    }
+
+    @Override
+    public void committed(String queueName, long nanos) {
+        counters(queueName).commits.record(nanos);
+    }
+
+    @Override
+    public void connectionAcquired(long nanos) {
+        connectionWait.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        final var queueSnapshots = queues.entrySet().stream()
+                .collect(toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().snapshot()));
+        return new Snapshot(queueSnapshots, connectionWait.snapshot());
+    }
+
+    private QueueCounters counters(String queueName) {
+        final var counters = queues.get(queueName);
+        return counters != null ? counters : queues.computeIfAbsent(queueName, name -> new QueueCounters());
+    }
+
+    public record Snapshot(Map<String, QueueSnapshot> queues, TimerSnapshot connectionWait) {
+        public QueueSnapshot queue(String queueName) {
+            return queues.getOrDefault(queueName, QueueSnapshot.EMPTY);
+        }
+    }
+
+    public record QueueSnapshot(TimerSnapshot claims,
+                                long claimedMessages,
+                                long emptyPolls,
+                                TimerSnapshot executions,
+                                long failures,
+                                TimerSnapshot commits) {
+        private static final QueueSnapshot EMPTY = new QueueCounters().snapshot();
+
+        /**
+         * Share of claims that found nothing to do.
+         */
+        public double emptyPollRate() {
+            return claims.count() == 0 ? 0 : (double) emptyPolls / claims.count();
+        }
+    }
+
+    private static final class QueueCounters {
+        private final Timer claims = new Timer();
+        private final LongAdder claimedMessages = new LongAdder();
+        private final LongAdder emptyPolls = new LongAdder();
+        private final Timer executions = new Timer();
+        private final LongAdder failures = new LongAdder();
+        private final Timer commits = new Timer();
+
+        QueueSnapshot snapshot() {
+            return new QueueSnapshot(claims.snapshot(), claimedMessages.sum(), emptyPolls.sum(),
+                    executions.snapshot(), failures.sum(), commits.snapshot());
+        }
+    }
+}
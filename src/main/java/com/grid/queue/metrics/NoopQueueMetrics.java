@@ -0,0 +1,25 @@
+package com.grid.queue.metrics;
+
+enum NoopQueueMetrics implements QueueMetrics {
+    INSTANCE;
+
+    @Override
+    public void claimed(String queueName, int count, long nanos) {
+    }
+
+    @Override
+    public void executed(String queueName, int count, long nanos) {
+    }
+
+    @Override
+    public void failed(String queueName, int count) {
+    }
+
+    @Override
+    public void committed(String queueName, long nanos) {
+    }
+
+    @Override
+    public void connectionAcquired(long nanos) {
+    }
+}
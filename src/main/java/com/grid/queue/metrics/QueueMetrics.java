@@ -0,0 +1,37 @@
+package com.grid.queue.metrics;
+
+/**
+ * Receives timings and counters from the repository. Implementations are called on the hot path of every claim, so
+ * they must be cheap and must not block.
+ */
+public interface QueueMetrics {
+
+    /**
+     * A claim of {@code count} messages took {@code nanos}. A claim of zero messages is an empty poll.
+     */
+    void claimed(String queueName, int count, long nanos);
+
+    /**
+     * The task ran over {@code count} messages for {@code nanos}, whether it succeeded or not.
+     */
+    void executed(String queueName, int count, long nanos);
+
+    /**
+     * {@code count} messages were not processed and stay in (or return to) the queue.
+     */
+    void failed(String queueName, int count);
+
+    /**
+     * Acknowledging processed messages, including the commit of the transaction, took {@code nanos}.
+     */
+    void committed(String queueName, long nanos);
+
+    /**
+     * Borrowing a connection from the data source took {@code nanos}.
+     */
+    void connectionAcquired(long nanos);
+
+    static QueueMetrics noop() {
+        return NoopQueueMetrics.INSTANCE;
+    }
+}
@@ -0,0 +1,91 @@
+package com.grid.queue.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, total, maximum and latency distribution of a timed operation. Updates are striped, so concurrent writers
+ * don't contend. The distribution is a histogram of log-linear buckets: every power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a percentile is off by at most a quarter of its value.
+ */
+final class Timer {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+    Timer() {
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        final var recorded = Math.max(nanos, 0);
+        count.increment();
+        totalNanos.add(recorded);
+        maxNanos.accumulate(recorded);
+        histogram[bucket(recorded)].increment();
+    }
+
+    TimerSnapshot snapshot() {
+        final var counts = new long[BUCKETS];
+        var histogramCount = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram[i].sum();
+            histogramCount += counts[i];
+        }
+        final var max = Duration.ofNanos(maxNanos.get());
+        return new TimerSnapshot(count.sum(), Duration.ofNanos(totalNanos.sum()), max,
+                percentile(counts, histogramCount, 0.5, max),
+                percentile(counts, histogramCount, 0.9, max),
+                percentile(counts, histogramCount, 0.99, max));
+    }
+
+    /**
+     * @return upper bound of the bucket holding the percentile, but no more than the maximum
+     */
+    private static Duration percentile(long[] counts, long total, double percentile, Duration max) {
+        if (total == 0) {
+            return Duration.ZERO;
+        }
+        final var rank = (long) Math.ceil(percentile * total);
+        var seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                final var upperBound = Duration.ofNanos(upperBound(i));
+                return upperBound.compareTo(max) < 0 ? upperBound : max;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Values below {@value #SUB_BUCKETS} get a bucket each. Larger values are bucketed by their highest bit and the
+     * {@value #SUB_BUCKET_BITS} bits below it.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        final var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        final var subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final var exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        final var width = 1L << (exponent - SUB_BUCKET_BITS);
+        final var lowerBound = (1L << exponent) + (bucket & (SUB_BUCKETS - 1)) * width;
+        return lowerBound + width - 1;
+    }
+}
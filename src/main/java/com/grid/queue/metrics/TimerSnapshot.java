@@ -0,0 +1,14 @@
+package com.grid.queue.metrics;
+
+import java.time.Duration;
+
+/**
+ * @param p50 median, as the upper bound of its histogram bucket
+ * @param p90 90th percentile, as the upper bound of its histogram bucket
+ * @param p99 99th percentile, as the upper bound of its histogram bucket
+ */
+public record TimerSnapshot(long count, Duration total, Duration max, Duration p50, Duration p90, Duration p99) {
+    public Duration mean() {
+        return count == 0 ? Duration.ZERO : total.dividedBy(count);
+    }
+}
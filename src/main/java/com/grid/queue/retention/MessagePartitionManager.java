@@ -0,0 +1,283 @@
+package com.grid.queue.retention;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+import static com.grid.queue.validation.Validation.required;
+import static java.lang.String.format;
+import static java.time.LocalDateTime.now;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Maintains daily range partitions of the {@code message} table. Partitions are created ahead of time, so inserts
+ * don't end up in the default partition, and partitions that ended more than {@link RetentionConfig#retention()} ago
+ * are dropped once none of their messages is waiting or in progress; dead letters go with the partition.
+ * Dropping a partition is a catalog operation, so old history goes away without row-by-row deletes and the vacuum
+ * work they cause. Dedup keys whose window is over are deleted along the way.
+ */
+public class MessagePartitionManager implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(MessagePartitionManager.class);
+
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final Pattern PARTITION_NAME = Pattern.compile("message_p(\\d{8})");
+
+    private static final String CREATE_PARTITION_QUERY = """
+            CREATE TABLE IF NOT EXISTS %s PARTITION OF message
+            FOR VALUES FROM ('%s 00:00:00+00') TO ('%s 00:00:00+00')
+            """;
+
+    private static final String HAS_DEFAULT_PARTITION_MESSAGES_QUERY = """
+            SELECT EXISTS (
+              SELECT 1
+              FROM message_default
+              WHERE created_at >= '%s 00:00:00+00'
+                AND created_at < '%s 00:00:00+00'
+            )
+            """;
+
+    private static final String CREATE_DETACHED_PARTITION_QUERY = """
+            CREATE TABLE %s (LIKE message INCLUDING DEFAULTS INCLUDING CONSTRAINTS)
+            """;
+
+    private static final String MOVE_DEFAULT_PARTITION_MESSAGES_QUERY = """
+            WITH moved AS (
+              DELETE FROM message_default
+              WHERE created_at >= '%2$s 00:00:00+00'
+                AND created_at < '%3$s 00:00:00+00'
+              RETURNING *
+            )
+            INSERT INTO %1$s
+            SELECT * FROM moved
+            """;
+
+    private static final String ATTACH_PARTITION_QUERY = """
+            ALTER TABLE message ATTACH PARTITION %s
+            FOR VALUES FROM ('%s 00:00:00+00') TO ('%s 00:00:00+00')
+            """;
+
+    private static final String GET_PARTITIONS_QUERY = """
+            SELECT child.relname
+            FROM pg_inherits
+            JOIN pg_class parent ON pg_inherits.inhparent = parent.oid
+            JOIN pg_class child ON pg_inherits.inhrelid = child.oid
+            WHERE parent.relname = 'message'
+              AND parent.relnamespace = current_schema()::regnamespace
+            """;
+
+    private static final String HAS_UNPROCESSED_MESSAGES_QUERY = """
+            SELECT EXISTS (SELECT 1 FROM %s WHERE state IN ('CREATED', 'IN_PROGRESS'))
+            """;
+
+    /**
+     * Dropping a partition doesn't fire the delete trigger that removes offloaded bodies, so they're deleted first.
+     */
+    private static final String DELETE_PARTITION_PAYLOADS_QUERY = """
+            DELETE FROM message_payload
+            WHERE message_id IN (SELECT id FROM %s WHERE body_offloaded)
+            """;
+
+    /**
+     * Takes the locks the drop needs up front, in the order inserts and claims take them, parent first.
+     */
+    private static final String LOCK_PARTITION_QUERY = """
+            LOCK TABLE ONLY message, %s IN ACCESS EXCLUSIVE MODE
+            """;
+
+    private static final String DROP_PARTITION_QUERY = """
+            DROP TABLE %s
+            """;
+
+    private static final String DELETE_EXPIRED_DEDUP_KEYS_QUERY = """
+            DELETE FROM message_dedup
+            WHERE expires_at <= now()
+            """;
+
+    private final DataSource dataSource;
+    private final RetentionConfig config;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+
+    public MessagePartitionManager(DataSource dataSource, RetentionConfig config) {
+        this(dataSource, config, Clock.systemUTC());
+    }
+
+    MessagePartitionManager(DataSource dataSource, RetentionConfig config, Clock clock) {
+        this.dataSource = required("dataSource", dataSource);
+        this.config = required("config", config);
+        this.clock = required("clock", clock);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "message-partition-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, config.interval().toMillis(), MILLISECONDS);
+    }
+
+    private void maintain() {
+        try {
+            createPartitions();
+            dropExpiredPartitions();
+            deleteExpiredDedupKeys();
+        } catch (Exception e) {
+            LOG.error("Error maintaining message partitions", e);
+        }
+    }
+
+    /**
+     * Creates partitions for the current day and {@link RetentionConfig#partitionsAhead()} following days.
+     */
+    public void createPartitions() {
+        final var today = LocalDate.now(clock);
+        for (int i = 0; i <= config.partitionsAhead(); i++) {
+            createPartition(today.plusDays(i));
+        }
+    }
+
+    /**
+     * Creates the partition of the day. Messages of that day that already landed in the default partition,
+     * e.g. because the manager wasn't running, are moved into the new partition in the same transaction.
+     */
+    void createPartition(LocalDate day) {
+        final var partition = partitionName(day);
+        final var nextDay = day.plusDays(1);
+        try (final var connection = dataSource.getConnection();
+             final var statement = connection.createStatement()) {
+            if (!hasDefaultPartitionMessages(connection, day)) {
+                statement.execute(format(CREATE_PARTITION_QUERY, partition, day, nextDay));
+                return;
+            }
+            try {
+                connection.setAutoCommit(false);
+                statement.execute(format(CREATE_DETACHED_PARTITION_QUERY, partition));
+                final var moved = statement.executeUpdate(format(MOVE_DEFAULT_PARTITION_MESSAGES_QUERY, partition, day, nextDay));
+                statement.execute(format(ATTACH_PARTITION_QUERY, partition, day, nextDay));
+                connection.commit();
+                LOG.info("[{}] Moved {} Messages from the default partition to {}", now(), moved, partition);
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error creating message partition for " + day, e);
+        }
+    }
+
+    private boolean hasDefaultPartitionMessages(Connection connection, LocalDate day) throws SQLException {
+        try (final var statement = connection.createStatement();
+             final var resultSet = statement.executeQuery(format(HAS_DEFAULT_PARTITION_MESSAGES_QUERY, day, day.plusDays(1)))) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    /**
+     * @return names of the dropped partitions
+     */
+    public List<String> dropExpiredPartitions() {
+        final var expiredBefore = clock.instant().minus(config.retention()).atOffset(ZoneOffset.UTC).toLocalDate();
+        final var dropped = new ArrayList<String>();
+        try (final var connection = dataSource.getConnection()) {
+            for (var partition : partitions(connection)) {
+                final var day = partitionDay(partition);
+                final var expired = day.isPresent() && !day.get().plusDays(1).isAfter(expiredBefore);
+                if (expired && !hasUnprocessedMessages(connection, partition) && dropPartition(connection, partition)) {
+                    dropped.add(partition);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error dropping expired message partitions", e);
+        }
+        if (!dropped.isEmpty()) {
+            LOG.info("[{}] Dropped expired message partitions {}", now(), dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Expired keys are taken over by new messages anyway; deleting them keeps keys that aren't reused from piling up.
+     *
+     * @return number of deleted keys
+     */
+    public int deleteExpiredDedupKeys() {
+        try (final var connection = dataSource.getConnection();
+             final var statement = connection.prepareStatement(DELETE_EXPIRED_DEDUP_KEYS_QUERY)) {
+            return statement.executeUpdate();
+        } catch (Exception e) {
+            throw new RuntimeException("Error deleting expired dedup keys", e);
+        }
+    }
+
+    private List<String> partitions(Connection connection) throws SQLException {
+        try (final var statement = connection.prepareStatement(GET_PARTITIONS_QUERY);
+             final var resultSet = statement.executeQuery()) {
+            final var partitions = new ArrayList<String>();
+            while (resultSet.next()) {
+                partitions.add(resultSet.getString(1));
+            }
+            return partitions;
+        }
+    }
+
+    private boolean hasUnprocessedMessages(Connection connection, String partition) throws SQLException {
+        try (final var statement = connection.createStatement();
+             final var resultSet = statement.executeQuery(format(HAS_UNPROCESSED_MESSAGES_QUERY, partition))) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    /**
+     * Deletes the offloaded bodies and drops the partition in one transaction. The partition is checked again under
+     * the lock, so a message retried or added in the meantime isn't dropped with it.
+     *
+     * @return false if the partition got unprocessed messages since it was first checked
+     */
+    private boolean dropPartition(Connection connection, String partition) throws SQLException {
+        try (final var statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            statement.execute(format(LOCK_PARTITION_QUERY, partition));
+            if (hasUnprocessedMessages(connection, partition)) {
+                connection.rollback();
+                return false;
+            }
+            statement.execute(format(DELETE_PARTITION_PAYLOADS_QUERY, partition));
+            statement.execute(format(DROP_PARTITION_QUERY, partition));
+            connection.commit();
+            return true;
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private static String partitionName(LocalDate day) {
+        return "message_p" + PARTITION_SUFFIX.format(day);
+    }
+
+    private static Optional<LocalDate> partitionDay(String partition) {
+        final var matcher = PARTITION_NAME.matcher(partition);
+        return matcher.matches() ? Optional.of(LocalDate.parse(matcher.group(1), PARTITION_SUFFIX)) : Optional.empty();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
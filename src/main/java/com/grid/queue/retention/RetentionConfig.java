@@ -0,0 +1,33 @@
+package com.grid.queue.retention;
+
+import java.time.Duration;
+
+import static com.grid.queue.validation.Validation.required;
+
+/**
+ * @param partitionsAhead number of daily partitions created ahead of the current day
+ * @param retention       how long a fully processed partition is kept after its range has ended
+ * @param interval        how often partitions are created and expired ones dropped
+ */
+public record RetentionConfig(int partitionsAhead, Duration retention, Duration interval) {
+    private static final int DEFAULT_PARTITIONS_AHEAD = 3;
+    private static final Duration DEFAULT_RETENTION = Duration.ofDays(7);
+    private static final Duration DEFAULT_INTERVAL = Duration.ofHours(1);
+
+    public RetentionConfig(int partitionsAhead, Duration retention, Duration interval) {
+        if (partitionsAhead < 0) {
+            throw new IllegalStateException("partitionsAhead must not be negative but was " + partitionsAhead);
+        }
+        this.partitionsAhead = partitionsAhead;
+        this.retention = required("retention", retention);
+        this.interval = required("interval", interval);
+    }
+
+    public static RetentionConfig defaults() {
+        return new RetentionConfig(DEFAULT_PARTITIONS_AHEAD, DEFAULT_RETENTION, DEFAULT_INTERVAL);
+    }
+
+    public RetentionConfig withRetention(Duration retention) {
+        return new RetentionConfig(partitionsAhead, retention, interval);
+    }
+}
@@ -0,0 +1,58 @@
+package com.grid.queue.sharding;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Maps keys to nodes so that adding or removing a node only moves the keys of that node. Every node is placed on the
+ * ring {@code virtualNodes} times to even out the share of keys each node gets.
+ */
+class ConsistentHashRing<T> {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final NavigableMap<Long, T> ring = new TreeMap<>();
+
+    /**
+     * @param nodes nodes by name. The name decides where a node is placed, so it must stay the same across restarts
+     */
+    ConsistentHashRing(Map<String, T> nodes, int virtualNodes) {
+        required("nodes", nodes);
+        positive("virtualNodes", virtualNodes);
+        if (nodes.isEmpty()) {
+            throw new IllegalStateException("nodes is empty");
+        }
+        nodes.forEach((name, node) -> {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(name + "#" + i), required("node " + name, node));
+            }
+        });
+    }
+
+    T node(String key) {
+        final var entry = ring.ceilingEntry(hash(required("key", key)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche, so similar keys like {@code shard#1} and {@code shard#2} land far apart.
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,33 @@
+package com.grid.queue.sharding;
+
+import com.grid.queue.message.Message;
+
+/**
+ * What a message is routed to a shard by.
+ */
+public enum ShardKey {
+    /**
+     * Every message of a queue goes to the same shard. Spreads queues, not the load of a single queue.
+     */
+    QUEUE {
+        @Override
+        String of(Message message) {
+            return message.queueName();
+        }
+    },
+    /**
+     * Messages are spread by their partition key, so messages of a key stay in order on one shard. Messages without a
+     * partition key are spread by their dedup key, so duplicates meet on one shard, and by id otherwise.
+     */
+    MESSAGE {
+        @Override
+        String of(Message message) {
+            if (message.partitionKey() != null) {
+                return message.partitionKey();
+            }
+            return message.dedupKey() != null ? message.dedupKey() : message.id().toString();
+        }
+    };
+
+    abstract String of(Message message);
+}
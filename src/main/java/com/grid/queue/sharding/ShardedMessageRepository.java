@@ -0,0 +1,207 @@
+package com.grid.queue.sharding;
+
+import com.grid.queue.message.BatchTask;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.grid.queue.validation.Validation.positive;
+import static com.grid.queue.validation.Validation.required;
+import static java.util.Optional.empty;
+
+/**
+ * Spreads queues over several independent databases, each behind its own {@link MessageRepository}. Messages are
+ * routed to a shard by consistent hashing of their {@link ShardKey}, so adding a shard only moves the keys it takes
+ * over.
+ * <p>
+ * Consumers take turns starting at a different shard and try shards that had messages last time before those that were
+ * empty, so all shards are drained evenly and an idle shard costs a poll only when the others are empty too.
+ * <p>
+ * Messages only share a transaction within a shard: {@link #addAll} writes every shard separately.
+ * <p>
+ * A shard that fails a poll is tried after the others until it answers again, so an unreachable database doesn't stop
+ * consumers from draining the remaining shards. A failing task is not a failing shard: its exception reaches the
+ * caller.
+ */
+public class ShardedMessageRepository implements MessageRepository, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedMessageRepository.class);
+    private static final int VIRTUAL_NODES = 128;
+    private static final int HAD_MESSAGES = 0;
+    private static final int EMPTY = 1;
+    private static final int FAILED = 2;
+
+    private final List<MessageRepository> shards;
+    private final ConsistentHashRing<Integer> ring;
+    private final ShardKey shardKey;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final Map<String, AtomicIntegerArray> shardStates = new ConcurrentHashMap<>();
+
+    /**
+     * @param shards repositories by shard name. The names place the shards on the hash ring, so they must stay the same
+     *               when the process restarts or shards are added
+     */
+    public ShardedMessageRepository(Map<String, ? extends MessageRepository> shards, ShardKey shardKey) {
+        required("shards", shards);
+        this.shardKey = required("shardKey", shardKey);
+        this.shards = List.copyOf(shards.values());
+        final var indexes = new LinkedHashMap<String, Integer>();
+        shards.keySet().forEach(name -> indexes.put(name, indexes.size()));
+        this.ring = new ConsistentHashRing<>(indexes, VIRTUAL_NODES);
+    }
+
+    @Override
+    public Optional<Message> processOldestTask(String queueName, Task task) {
+        required("queueName", queueName);
+        required("task", task);
+        final var handedOut = new AtomicBoolean();
+        final Task handingOut = message -> {
+            handedOut.set(true);
+            task.execute(message);
+        };
+        return drain(queueName, shard -> shard.processOldestTask(queueName, handingOut), Optional::isPresent, handedOut)
+                .flatMap(Function.identity());
+    }
+
+    @Override
+    public List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch) {
+        required("queueName", queueName);
+        positive("maxBatch", maxBatch);
+        required("task", task);
+        final var handedOut = new AtomicBoolean();
+        final BatchTask handingOut = messages -> {
+            handedOut.set(true);
+            return task.execute(messages);
+        };
+        return drain(queueName, shard -> shard.processOldestTasks(queueName, handingOut, maxBatch), batch -> !batch.isEmpty(), handedOut)
+                .orElse(List.of());
+    }
+
+    /**
+     * Polls the shards until one has messages. Shards that were empty at their last poll are tried after those that had
+     * messages, and shards whose last poll failed are tried last. A shard that fails before handing out messages is
+     * skipped, so its failure is thrown only when every shard failed. A failure once the task got messages is thrown
+     * right away, so the task never runs for messages of another shard in the same poll.
+     *
+     * @param handedOut set when the shard passes messages to the task
+     */
+    private <T> Optional<T> drain(String queueName,
+                                  Function<MessageRepository, T> poll,
+                                  Predicate<T> hasMessages,
+                                  AtomicBoolean handedOut) {
+        final var lastPoll = shardStates.computeIfAbsent(queueName, __ -> new AtomicIntegerArray(shards.size()));
+        final var start = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        final var order = new ArrayList<Integer>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            order.add((start + i) % shards.size());
+        }
+        order.sort(Comparator.comparingInt(lastPoll::get));
+        RuntimeException failure = null;
+        var failed = 0;
+        for (var shard : order) {
+            final T result;
+            try {
+                result = poll.apply(shards.get(shard));
+            } catch (RuntimeException e) {
+                if (handedOut.get()) {
+                    lastPoll.set(shard, HAD_MESSAGES);
+                    throw e;
+                }
+                LOG.warn("Error polling shard {} of the queue {}", shard, queueName, e);
+                lastPoll.set(shard, FAILED);
+                failed++;
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                continue;
+            }
+            final var found = hasMessages.test(result);
+            lastPoll.set(shard, found ? HAD_MESSAGES : EMPTY);
+            if (found) {
+                return Optional.of(result);
+            }
+        }
+        if (failed == shards.size()) {
+            throw failure;
+        }
+        return empty();
+    }
+
+    @Override
+    public boolean add(Message message) {
+        required("message", message);
+        return shardOf(message).add(message);
+    }
+
+    @Override
+    public int addAll(Collection<Message> messages) {
+        required("messages", messages);
+        final var messagesByShard = new HashMap<MessageRepository, List<Message>>();
+        for (var message : messages) {
+            messagesByShard.computeIfAbsent(shardOf(message), __ -> new ArrayList<>()).add(message);
+        }
+        var added = 0;
+        for (var shardMessages : messagesByShard.entrySet()) {
+            added += shardMessages.getKey().addAll(shardMessages.getValue());
+        }
+        return added;
+    }
+
+    @Override
+    public Map<String, Long> backlog() {
+        final var backlog = new LinkedHashMap<String, Long>();
+        for (var shard : shards) {
+            shard.backlog().forEach((queueName, count) -> backlog.merge(queueName, count, Long::sum));
+        }
+        return backlog;
+    }
+
+    /**
+     * Closes every shard that is {@link AutoCloseable}, even if closing an earlier one fails.
+     */
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (var shard : shards) {
+            if (shard instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (failure == null) {
+                        failure = new RuntimeException("Error closing shards", e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private MessageRepository shardOf(Message message) {
+        return shards.get(ring.node(shardKey.of(message)));
+    }
+}
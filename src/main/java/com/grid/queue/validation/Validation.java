@@ -7,4 +7,11 @@ public class Validation {
         }
         return value;
     }
+
+    public static int positive(String valueName, int value) {
+        if (value <= 0) {
+            throw new IllegalStateException(valueName + " must be positive but was " + value);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,4 @@
+CREATE INDEX ix_message_pending_queue_name_created_at ON message (queue_name, created_at) WHERE state = 'CREATED';
+
+DROP INDEX ix_message_queue_name_state;
+DROP INDEX ix_message_created_at;
@@ -0,0 +1,5 @@
+ALTER TABLE message
+    ADD COLUMN locked_until TIMESTAMP WITH TIME ZONE,
+    ADD COLUMN locked_by    VARCHAR;
+
+CREATE INDEX ix_message_in_progress_locked_until ON message (locked_until) WHERE state = 'IN_PROGRESS';
@@ -0,0 +1,15 @@
+CREATE FUNCTION notify_message_created() RETURNS TRIGGER AS
+$$
+BEGIN
+    PERFORM pg_notify('message_created', queue_name)
+    FROM (SELECT DISTINCT queue_name FROM created_message) AS queue;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tr_message_notify_created
+    AFTER INSERT
+    ON message
+    REFERENCING NEW TABLE AS created_message
+    FOR EACH STATEMENT
+EXECUTE FUNCTION notify_message_created();
@@ -0,0 +1,34 @@
+ALTER TABLE message RENAME TO message_unpartitioned;
+DROP TRIGGER tr_message_notify_created ON message_unpartitioned;
+DROP INDEX ix_message_pending_queue_name_created_at;
+DROP INDEX ix_message_in_progress_locked_until;
+
+CREATE TABLE message
+(
+    id           UUID                     NOT NULL,
+    queue_name   VARCHAR                  NOT NULL,
+    state        VARCHAR                  NOT NULL,
+    body         JSONB                    NOT NULL,
+    created_at   TIMESTAMP WITH TIME ZONE NOT NULL,
+    locked_until TIMESTAMP WITH TIME ZONE,
+    locked_by    VARCHAR,
+    PRIMARY KEY (id, created_at)
+) PARTITION BY RANGE (created_at);
+
+CREATE TABLE message_default PARTITION OF message DEFAULT;
+
+INSERT INTO message (id, queue_name, state, body, created_at, locked_until, locked_by)
+SELECT id, queue_name, state, body, COALESCE(created_at, now()), locked_until, locked_by
+FROM message_unpartitioned;
+
+DROP TABLE message_unpartitioned;
+
+CREATE INDEX ix_message_pending_queue_name_created_at ON message (queue_name, created_at) WHERE state = 'CREATED';
+CREATE INDEX ix_message_in_progress_locked_until ON message (locked_until) WHERE state = 'IN_PROGRESS';
+
+CREATE TRIGGER tr_message_notify_created
+    AFTER INSERT
+    ON message
+    REFERENCING NEW TABLE AS created_message
+    FOR EACH STATEMENT
+EXECUTE FUNCTION notify_message_created();
@@ -0,0 +1,10 @@
+CREATE TABLE message_archive
+(
+    id           UUID                     NOT NULL,
+    queue_name   VARCHAR                  NOT NULL,
+    body         JSONB                    NOT NULL,
+    created_at   TIMESTAMP WITH TIME ZONE NOT NULL,
+    processed_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()
+);
+
+CREATE INDEX ix_message_archive_processed_at ON message_archive (processed_at);
@@ -0,0 +1,7 @@
+ALTER TABLE message
+    ADD COLUMN available_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now(),
+    ADD COLUMN priority     INTEGER                  NOT NULL DEFAULT 0;
+
+CREATE INDEX ix_message_pending_queue_name_priority_available_at ON message (queue_name, priority DESC, available_at) WHERE state = 'CREATED';
+
+DROP INDEX ix_message_pending_queue_name_created_at;
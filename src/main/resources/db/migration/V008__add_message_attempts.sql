@@ -0,0 +1,3 @@
+ALTER TABLE message
+    ADD COLUMN attempts   INTEGER NOT NULL DEFAULT 0,
+    ADD COLUMN last_error VARCHAR;
@@ -0,0 +1,5 @@
+ALTER TABLE message
+    ADD COLUMN partition_key VARCHAR;
+
+CREATE INDEX ix_message_unfinished_queue_name_partition_key_created_at ON message (queue_name, partition_key, created_at)
+    WHERE state IN ('CREATED', 'IN_PROGRESS') AND partition_key IS NOT NULL;
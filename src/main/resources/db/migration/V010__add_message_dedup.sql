@@ -0,0 +1,13 @@
+ALTER TABLE message
+    ADD COLUMN dedup_key VARCHAR;
+
+CREATE TABLE message_dedup
+(
+    queue_name VARCHAR                  NOT NULL,
+    dedup_key  VARCHAR                  NOT NULL,
+    message_id UUID                     NOT NULL,
+    expires_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    PRIMARY KEY (queue_name, dedup_key)
+);
+
+CREATE INDEX ix_message_dedup_expires_at ON message_dedup (expires_at);
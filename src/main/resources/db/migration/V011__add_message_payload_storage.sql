@@ -0,0 +1,31 @@
+ALTER TABLE message
+    ALTER COLUMN body DROP NOT NULL,
+    ADD COLUMN body_compressed BYTEA,
+    ADD COLUMN body_offloaded  BOOLEAN NOT NULL DEFAULT false,
+    ADD CONSTRAINT ck_message_body CHECK (body IS NOT NULL OR body_compressed IS NOT NULL OR body_offloaded);
+
+ALTER TABLE message_archive
+    ALTER COLUMN body DROP NOT NULL,
+    ADD COLUMN body_compressed BYTEA;
+
+CREATE TABLE message_payload
+(
+    message_id UUID  NOT NULL PRIMARY KEY,
+    body       BYTEA NOT NULL
+);
+
+CREATE FUNCTION delete_message_payload() RETURNS TRIGGER AS
+$$
+BEGIN
+    DELETE FROM message_payload
+    WHERE message_id IN (SELECT id FROM deleted_message WHERE body_offloaded);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tr_message_delete_payload
+    AFTER DELETE
+    ON message
+    REFERENCING OLD TABLE AS deleted_message
+    FOR EACH STATEMENT
+EXECUTE FUNCTION delete_message_payload();
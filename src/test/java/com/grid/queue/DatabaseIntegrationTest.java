@@ -9,20 +9,24 @@ import com.grid.queue.message.MessageRepository;
 import org.flywaydb.core.Flyway;
 import org.flywaydb.core.api.configuration.FluentConfiguration;
 
+import javax.sql.DataSource;
+
 import static java.lang.Runtime.getRuntime;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public abstract class DatabaseIntegrationTest {
     private static final String PUBLIC_SCHEMA = "public";
+    protected static final DatabaseConnectionConfig connectionConfig;
+    protected static final DataSource dataSource;
     protected static final MessageRepository repository;
     protected static final ObjectMapper mapper;
 
     static {
-        var config = new DatabaseConnectionConfig("localhost", 5431, "message", "test", "test");
-        var testContainer = new DatabaseTestContainer(config);
+        connectionConfig = new DatabaseConnectionConfig("localhost", 5431, "message", "test", "test");
+        var testContainer = new DatabaseTestContainer(connectionConfig);
         testContainer.start();
 
-        var connectionPool = new ConnectionPool(config);
+        var connectionPool = new ConnectionPool(connectionConfig);
 
         var migrationConfig = new FluentConfiguration()
                 .dataSource(connectionPool.dataSource())
@@ -32,7 +36,8 @@ public abstract class DatabaseIntegrationTest {
         assertThat(result.success).isTrue();
         assertThat(result.migrations).isNotEmpty();
         mapper = new ObjectMapper();
-        repository = new JdbcMessageRepository(connectionPool.dataSource(), mapper);
+        dataSource = connectionPool.dataSource();
+        repository = new JdbcMessageRepository(dataSource, mapper);
         getRuntime().addShutdownHook(new Thread(flyway::clean));
         getRuntime().addShutdownHook(new Thread(testContainer::shutdown));
     }
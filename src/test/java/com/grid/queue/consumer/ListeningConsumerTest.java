@@ -0,0 +1,100 @@
+package com.grid.queue.consumer;
+
+import com.grid.queue.DatabaseIntegrationTest;
+import com.grid.queue.message.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ListeningConsumerTest extends DatabaseIntegrationTest {
+    private static final String QUEUE_NAME = "listening_queue";
+    private static final String FAILING_QUEUE_NAME = "listening_failing_queue";
+
+    @Test
+    void should_process_message_as_soon_as_it_is_added() throws Exception {
+        // given
+        var processedLatch = new CountDownLatch(3);
+        var body = mapper.readTree("""
+                {"name": "value"}
+                """);
+        try (var notifications = new QueueNotifications(connectionConfig);
+             var consumer = new ListeningConsumer(repository, notifications, QUEUE_NAME, __ -> processedLatch.countDown(), ofMinutes(1))) {
+            notifications.start();
+            consumer.start();
+            MILLISECONDS.sleep(200);
+
+            // when
+            for (int i = 0; i < 3; i++) {
+                repository.add(new Message(randomUUID(), QUEUE_NAME, CREATED, body, now()));
+                MILLISECONDS.sleep(100);
+            }
+
+            // then
+            assertThat(processedLatch.await(1, SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    void should_fall_back_to_safety_poll_without_notification() throws Exception {
+        // given
+        var processedLatch = new CountDownLatch(1);
+        var body = mapper.readTree("""
+                {"name": "value"}
+                """);
+        var notifications = new QueueNotifications(connectionConfig);
+        notifications.close();
+        try (var consumer = new ListeningConsumer(repository, notifications, QUEUE_NAME, __ -> processedLatch.countDown(), ofSeconds(1))) {
+            consumer.start();
+            MILLISECONDS.sleep(200);
+
+            // when
+            repository.add(new Message(randomUUID(), QUEUE_NAME, CREATED, body, now()));
+
+            // then
+            assertThat(processedLatch.await(300, MILLISECONDS)).isFalse();
+            assertThat(processedLatch.await(2, SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    void should_keep_draining_backlog_after_task_failure() throws Exception {
+        // given
+        var body = mapper.readTree("""
+                {"name": "value"}
+                """);
+        var createdAt = now();
+        var failing = new Message(randomUUID(), FAILING_QUEUE_NAME, CREATED, body, createdAt);
+        var backlog = new ArrayList<Message>();
+        for (int i = 1; i <= 3; i++) {
+            backlog.add(new Message(randomUUID(), FAILING_QUEUE_NAME, CREATED, body, createdAt.plusNanos(i * 1_000L)));
+        }
+        repository.add(failing);
+        repository.addAll(backlog);
+        var processedLatch = new CountDownLatch(backlog.size());
+        var notifications = new QueueNotifications(connectionConfig);
+        notifications.close();
+
+        // when
+        try (var consumer = new ListeningConsumer(repository, notifications, FAILING_QUEUE_NAME, message -> {
+            if (message.id().equals(failing.id())) {
+                throw new IllegalStateException("Task failed");
+            }
+            processedLatch.countDown();
+        }, ofMinutes(1))) {
+            consumer.start();
+
+            // then
+            assertThat(processedLatch.await(2, SECONDS)).isTrue();
+        }
+    }
+}
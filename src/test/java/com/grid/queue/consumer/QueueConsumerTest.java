@@ -0,0 +1,184 @@
+package com.grid.queue.consumer;
+
+import com.grid.queue.DatabaseIntegrationTest;
+import com.grid.queue.message.BatchTask;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.Task;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueConsumerTest extends DatabaseIntegrationTest {
+
+    @Test
+    void should_process_messages_with_in_flight_work_bounded_by_concurrency() throws Exception {
+        // given
+        var queueName = "consumer_queue";
+        var messagesCount = 40;
+        var body = mapper.readTree("""
+                {"name": "value"}
+                """);
+        for (int i = 0; i < messagesCount; i++) {
+            repository.add(new Message(randomUUID(), queueName, CREATED, body, now()));
+        }
+        var processedIds = ConcurrentHashMap.<Object>newKeySet();
+        var inFlight = new AtomicInteger();
+        var maxInFlight = new AtomicInteger();
+        Task task = message -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sleep(20);
+            processedIds.add(message.id());
+            inFlight.decrementAndGet();
+        };
+        var config = ConsumerConfig.defaults(queueName).withConcurrency(4);
+
+        // when
+        try (var consumer = new QueueConsumer(repository, task, config)) {
+            consumer.start();
+            awaitSize(processedIds, messagesCount);
+        }
+
+        // then
+        assertThat(processedIds).hasSize(messagesCount);
+        assertThat(maxInFlight.get()).isBetween(2, 4);
+    }
+
+    @Test
+    void should_back_off_while_queue_is_empty() throws Exception {
+        // given
+        var polls = new AtomicInteger();
+        var countingRepository = new CountingRepository(repository, polls);
+        var config = ConsumerConfig.defaults("empty_queue")
+                .withConcurrency(1)
+                .withPollInterval(ofMillis(10), ofMillis(500));
+
+        // when
+        try (var consumer = new QueueConsumer(countingRepository, __ -> {
+        }, config)) {
+            consumer.start();
+            SECONDS.sleep(1);
+        }
+
+        // then
+        assertThat(polls.get()).isBetween(2, 10);
+    }
+
+    @Test
+    void should_poll_again_right_after_task_failure() throws Exception {
+        // given
+        var queueName = "failing_task_queue";
+        var body = mapper.readTree("{}");
+        var createdAt = now();
+        var failing = new Message(randomUUID(), queueName, CREATED, body, createdAt);
+        repository.add(failing);
+        for (int i = 1; i <= 3; i++) {
+            repository.add(new Message(randomUUID(), queueName, CREATED, body, createdAt.plusNanos(i * 1_000L)));
+        }
+        var processedLatch = new CountDownLatch(3);
+        Task task = message -> {
+            if (message.id().equals(failing.id())) {
+                throw new IllegalStateException("Task failed");
+            }
+            processedLatch.countDown();
+        };
+        var config = ConsumerConfig.defaults(queueName)
+                .withConcurrency(1)
+                .withPollInterval(ofSeconds(2), ofSeconds(4));
+
+        // when
+        try (var consumer = new QueueConsumer(repository, task, config)) {
+            consumer.start();
+
+            // then
+            assertThat(processedLatch.await(1, SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    void should_finish_in_flight_messages_on_close() throws Exception {
+        // given
+        var queueName = "shutdown_queue";
+        var message = new Message(randomUUID(), queueName, CREATED, mapper.readTree("{}"), now());
+        repository.add(message);
+        var processedIds = ConcurrentHashMap.<Object>newKeySet();
+        var started = ConcurrentHashMap.<Object>newKeySet();
+        Task task = processed -> {
+            started.add(processed.id());
+            sleep(300);
+            processedIds.add(processed.id());
+        };
+        var config = ConsumerConfig.defaults(queueName).withShutdownTimeout(ofSeconds(5));
+
+        // when
+        try (var consumer = new QueueConsumer(repository, task, config)) {
+            consumer.start();
+            awaitSize(started, 1);
+        }
+
+        // then
+        assertThat(processedIds).containsExactly(message.id());
+        assertThat(repository.processOldestTask(queueName, __ -> {
+        })).isEmpty();
+    }
+
+    private static void awaitSize(Set<Object> values, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && values.size() < size; i++) {
+            MILLISECONDS.sleep(50);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private record CountingRepository(MessageRepository delegate, AtomicInteger polls) implements MessageRepository {
+
+        @Override
+        public Optional<Message> processOldestTask(String queueName, Task task) {
+            polls.incrementAndGet();
+            return delegate.processOldestTask(queueName, task);
+        }
+
+        @Override
+        public List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch) {
+            polls.incrementAndGet();
+            return delegate.processOldestTasks(queueName, task, maxBatch);
+        }
+
+        @Override
+        public boolean add(Message message) {
+            return delegate.add(message);
+        }
+
+        @Override
+        public int addAll(Collection<Message> messages) {
+            return delegate.addAll(messages);
+        }
+
+        @Override
+        public Map<String, Long> backlog() {
+            return delegate.backlog();
+        }
+    }
+}
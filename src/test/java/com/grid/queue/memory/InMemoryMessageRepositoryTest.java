@@ -0,0 +1,160 @@
+package com.grid.queue.memory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.grid.queue.message.BatchResult;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.MessageRepositoryConfig;
+import com.grid.queue.message.MessageRepositoryContract;
+import com.grid.queue.message.RetryPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static com.grid.queue.message.MessageState.FAILED;
+import static java.time.Duration.ZERO;
+import static java.time.temporal.ChronoUnit.MICROS;
+import static java.util.Map.entry;
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InMemoryMessageRepositoryTest implements MessageRepositoryContract {
+
+    @TempDir
+    Path directory;
+
+    @Override
+    public MessageRepository repository(MessageRepositoryConfig config) {
+        return new InMemoryMessageRepository(config);
+    }
+
+    @Test
+    void should_recover_waiting_messages_and_dead_letters_from_journal() throws Exception {
+        // given
+        var config = MessageRepositoryConfig.defaults()
+                .withRetryPolicy(RetryPolicy.defaults().withMaxAttempts(1).withBackoff(ZERO, ZERO));
+        var journalPath = directory.resolve("queue.journal");
+        var body = new ObjectMapper().readTree("{\"name\": \"value\"}");
+        var createdAt = ZonedDateTime.now();
+        var processed = new Message(randomUUID(), "journal", CREATED, body, createdAt);
+        var deadLettered = new Message(randomUUID(), "journal", CREATED, body, createdAt.plusNanos(1_000));
+        var waiting = new Message(randomUUID(), "journal", CREATED, body, createdAt.plusNanos(2_000))
+                .withPartitionKey("key")
+                .withPriority(-1);
+        try (var repository = new InMemoryMessageRepository(config, MessageJournal.open(journalPath))) {
+            repository.addAll(List.of(processed, deadLettered, waiting));
+            repository.processOldestTask("journal", __ -> {
+            });
+            repository.processOldestTasks("journal", __ -> BatchResult.failed(List.of(deadLettered.id())), 1);
+        }
+
+        // when
+        try (var repository = new InMemoryMessageRepository(config, MessageJournal.open(journalPath))) {
+            var backlog = repository.backlog();
+            var deadLetters = repository.deadLetters("journal");
+            var recovered = repository.processOldestTask("journal", __ -> {
+            });
+
+            // then
+            assertThat(backlog).containsExactly(entry("journal", 1L));
+            assertThat(deadLetters).singleElement().satisfies(message -> {
+                assertThat(message.id()).isEqualTo(deadLettered.id());
+                assertThat(message.state()).isEqualTo(FAILED);
+                assertThat(message.attempts()).isEqualTo(1);
+                assertThat(message.lastError()).isNotNull();
+            });
+            assertThat(recovered).hasValueSatisfying(message -> {
+                assertThat(message.id()).isEqualTo(waiting.id());
+                assertThat(message.partitionKey()).isEqualTo("key");
+                assertThat(message.priority()).isEqualTo(-1);
+                assertThat(message.body()).isEqualTo(body);
+                assertThat(message.createdAt().toInstant()).isEqualTo(waiting.createdAt().toInstant().truncatedTo(MICROS));
+            });
+        }
+    }
+
+    @Test
+    void should_recover_messages_journaled_from_many_threads() throws Exception {
+        // given
+        var journalPath = directory.resolve("parallel.journal");
+        var body = new ObjectMapper().readTree("{\"name\": \"value\"}");
+        var createdAt = ZonedDateTime.now();
+        var messages = IntStream.range(0, 2_000)
+                .mapToObj(i -> new Message(randomUUID(), "parallel", CREATED, body, createdAt.plusNanos(i * 1_000L)))
+                .toList();
+        try (var journal = MessageJournal.open(journalPath)) {
+            IntStream.range(0, messages.size()).parallel().forEach(i -> {
+                journal.put(messages.get(i));
+                if (i % 2 == 0) {
+                    journal.remove(messages.get(i).id());
+                }
+            });
+        }
+
+        // when
+        try (var journal = MessageJournal.open(journalPath)) {
+            var recovered = journal.recovered();
+
+            // then
+            assertThat(recovered).map(Message::id).containsExactlyInAnyOrderElementsOf(IntStream.range(0, messages.size())
+                    .filter(i -> i % 2 == 1)
+                    .mapToObj(i -> messages.get(i).id())
+                    .toList());
+        }
+    }
+
+    @Test
+    void should_put_message_back_when_task_throws_error() throws Exception {
+        // given
+        var repository = new InMemoryMessageRepository(MessageRepositoryConfig.defaults()
+                .withRetryPolicy(RetryPolicy.defaults().withBackoff(ZERO, ZERO)));
+        var body = new ObjectMapper().readTree("{\"name\": \"value\"}");
+        var createdAt = ZonedDateTime.now();
+        var crashed = new Message(randomUUID(), "errors", CREATED, body, createdAt).withPartitionKey("key");
+        var next = new Message(randomUUID(), "errors", CREATED, body, createdAt.plusNanos(1_000)).withPartitionKey("key");
+        repository.addAll(List.of(crashed, next));
+
+        // when
+        assertThatThrownBy(() -> repository.processOldestTask("errors", __ -> {
+            throw new AssertionError("Task crashed");
+        })).isInstanceOf(AssertionError.class);
+        var retried = repository.processOldestTask("errors", __ -> {
+        });
+
+        // then
+        assertThat(retried).hasValueSatisfying(message -> {
+            assertThat(message.id()).isEqualTo(crashed.id());
+            assertThat(message.attempts()).isEqualTo(1);
+        });
+        assertThat(repository.processOldestTask("errors", __ -> {
+        })).map(Message::id).contains(next.id());
+    }
+
+    @Test
+    void should_claim_available_messages_of_lower_priorities_behind_delayed_ones() throws Exception {
+        // given
+        var repository = new InMemoryMessageRepository();
+        var body = new ObjectMapper().readTree("{\"name\": \"value\"}");
+        var createdAt = ZonedDateTime.now();
+        var delay = Duration.ofHours(1);
+        var delayedHigh = new Message(randomUUID(), "delayed", CREATED, body, createdAt).withDelay(delay).withPriority(1);
+        var delayedMedium = new Message(randomUUID(), "delayed", CREATED, body, createdAt).withDelay(delay);
+        var availableMedium = new Message(randomUUID(), "delayed", CREATED, body, createdAt.plusNanos(1_000));
+        var availableLow = new Message(randomUUID(), "delayed", CREATED, body, createdAt.plusNanos(2_000)).withPriority(-1);
+        repository.addAll(List.of(delayedHigh, delayedMedium, availableMedium, availableLow));
+
+        // when
+        var claimed = repository.processOldestTasks("delayed", __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(claimed).map(Message::id).containsExactly(availableMedium.id(), availableLow.id());
+        assertThat(repository.backlog()).containsExactly(entry("delayed", 2L));
+    }
+}
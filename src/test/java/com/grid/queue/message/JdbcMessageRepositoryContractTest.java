@@ -0,0 +1,11 @@
+package com.grid.queue.message;
+
+import com.grid.queue.DatabaseIntegrationTest;
+
+public class JdbcMessageRepositoryContractTest extends DatabaseIntegrationTest implements MessageRepositoryContract {
+
+    @Override
+    public MessageRepository repository(MessageRepositoryConfig config) {
+        return new JdbcMessageRepository(dataSource, mapper, config);
+    }
+}
@@ -0,0 +1,269 @@
+package com.grid.queue.message;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static com.grid.queue.message.MessageState.PROCESSED;
+import static java.time.Duration.ZERO;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Behaviour every {@link MessageRepository} has to share. Each test works on its own queues, so implementations backed
+ * by a shared database don't need cleaning up between tests.
+ */
+public interface MessageRepositoryContract {
+
+    MessageRepository repository(MessageRepositoryConfig config);
+
+    @Test
+    default void should_claim_every_message_exactly_once_under_concurrency() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults().withMessageLogging(false));
+        var queueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 200);
+        repository.addAll(messages);
+        var processed = new ConcurrentLinkedQueue<Message>();
+        var consumers = 8;
+        var finishLatch = new CountDownLatch(consumers);
+        var executor = Executors.newFixedThreadPool(consumers);
+
+        // when
+        for (int i = 0; i < consumers; i++) {
+            executor.execute(() -> {
+                Optional<Message> message;
+                do {
+                    message = repository.processOldestTask(queueName, __ -> {
+                    });
+                    message.ifPresent(processed::add);
+                } while (message.isPresent());
+                finishLatch.countDown();
+            });
+        }
+        assertThat(finishLatch.await(30, SECONDS)).isTrue();
+        executor.shutdown();
+
+        // then
+        assertThat(processed).map(Message::id)
+                .doesNotHaveDuplicates()
+                .containsExactlyInAnyOrderElementsOf(messages.stream().map(Message::id).toList());
+        assertThat(processed).extracting(Message::state).containsOnly(PROCESSED);
+    }
+
+    @Test
+    default void should_process_messages_of_queue_in_fifo_order() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults());
+        var queueName = uniqueQueueName();
+        var otherQueueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 5);
+        repository.addAll(messages);
+        repository.addAll(buildMessages(otherQueueName, 2));
+
+        // when
+        var processed = new ArrayList<Message>();
+        Optional<Message> message;
+        while ((message = repository.processOldestTask(queueName, __ -> {
+        })).isPresent()) {
+            processed.add(message.get());
+        }
+
+        // then
+        assertThat(processed).map(Message::id).containsExactlyElementsOf(messages.stream().map(Message::id).toList());
+        assertThat(repository.backlog()).doesNotContainKey(queueName).containsEntry(otherQueueName, 2L);
+    }
+
+    @Test
+    default void should_retry_messages_failed_by_batch_task() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults().withRetryPolicy(RetryPolicy.defaults().withBackoff(ZERO, ZERO)));
+        var queueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 5);
+        repository.addAll(messages);
+        var failedMessageId = messages.get(0).id();
+
+        // when
+        var firstBatch = repository.processOldestTasks(queueName, __ -> BatchResult.failed(List.of(failedMessageId)), 3);
+        var secondBatch = repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10);
+        var thirdBatch = repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(firstBatch).filteredOn(message -> message.id().equals(failedMessageId))
+                .singleElement()
+                .extracting(Message::state)
+                .isEqualTo(CREATED);
+        assertThat(firstBatch).filteredOn(message -> !message.id().equals(failedMessageId))
+                .hasSize(2)
+                .extracting(Message::state)
+                .containsOnly(PROCESSED);
+        assertThat(secondBatch).hasSize(3).extracting(Message::id).contains(failedMessageId);
+        assertThat(thirdBatch).isEmpty();
+    }
+
+    @Test
+    default void should_back_off_failed_message_and_dead_letter_it() throws Exception {
+        // given
+        var retryPolicy = RetryPolicy.defaults().withMaxAttempts(2).withBackoff(ofMillis(300), ofSeconds(1));
+        var repository = repository(MessageRepositoryConfig.defaults().withRetryPolicy(retryPolicy));
+        var queueName = uniqueQueueName();
+        repository.add(buildMessages(queueName, 1).get(0));
+        Task failingTask = __ -> {
+            throw new IllegalStateException("Poison message");
+        };
+
+        // when
+        assertThatThrownBy(() -> repository.processOldestTask(queueName, failingTask)).isInstanceOf(RuntimeException.class);
+        var duringBackoff = repository.processOldestTask(queueName, failingTask);
+        MILLISECONDS.sleep(400);
+        assertThatThrownBy(() -> repository.processOldestTask(queueName, failingTask)).isInstanceOf(RuntimeException.class);
+        MILLISECONDS.sleep(700);
+        var afterDeadLetter = repository.processOldestTask(queueName, failingTask);
+
+        // then
+        assertThat(duringBackoff).isEmpty();
+        assertThat(afterDeadLetter).isEmpty();
+        assertThat(repository.backlog()).doesNotContainKey(queueName);
+    }
+
+    @Test
+    default void should_claim_available_messages_by_priority() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults());
+        var queueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 3);
+        repository.add(messages.get(0));
+        repository.add(messages.get(1), ofSeconds(30), 10);
+        repository.add(messages.get(2), ZERO, 5);
+
+        // when
+        var processed = repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(processed).map(Message::id).containsExactly(messages.get(2).id(), messages.get(0).id());
+        assertThat(repository.backlog()).containsEntry(queueName, 1L);
+    }
+
+    @Test
+    default void should_process_one_message_per_partition_key_at_a_time() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults());
+        var queueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 5);
+        var firstA = messages.get(0).withPartitionKey("a");
+        var firstB = messages.get(1).withPartitionKey("b");
+        var secondA = messages.get(2).withPartitionKey("a");
+        var secondB = messages.get(3).withPartitionKey("b");
+        var unkeyed = messages.get(4);
+        repository.addAll(List.of(firstA, firstB, secondA, secondB, unkeyed));
+        var claimedConcurrently = new ArrayList<Message>();
+
+        // when
+        var processedFirst = repository.processOldestTask(queueName, message ->
+                claimedConcurrently.addAll(repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10)));
+        var processedRest = repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(processedFirst).map(Message::id).contains(firstA.id());
+        assertThat(claimedConcurrently).map(Message::id).containsExactly(firstB.id(), unkeyed.id());
+        assertThat(processedRest).map(Message::id).containsExactly(secondA.id(), secondB.id());
+    }
+
+    @Test
+    default void should_skip_messages_with_taken_dedup_key() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults());
+        var queueName = uniqueQueueName();
+        var otherQueueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 6);
+
+        // when
+        var first = repository.add(messages.get(0).withDedupKey("a"));
+        var retried = repository.add(messages.get(1).withDedupKey("a"));
+        var added = repository.addAll(List.of(
+                messages.get(2).withDedupKey("a"),
+                messages.get(3).withDedupKey("b"),
+                messages.get(4).withDedupKey("b"),
+                messages.get(5)));
+        var otherQueue = repository.add(buildMessages(otherQueueName, 1).get(0).withDedupKey("a"));
+        var processed = repository.processOldestTasks(queueName, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(first).isTrue();
+        assertThat(retried).isFalse();
+        assertThat(added).isEqualTo(2);
+        assertThat(otherQueue).isTrue();
+        assertThat(processed).map(Message::id).containsExactly(messages.get(0).id(), messages.get(3).id(), messages.get(5).id());
+        assertThat(processed).map(Message::dedupKey).containsExactly("a", "b", null);
+    }
+
+    @Test
+    default void should_release_dedup_key_after_window() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults().withDedup(new DedupConfig(ofMillis(300), 100)));
+        var queueName = uniqueQueueName();
+        var messages = buildMessages(queueName, 3);
+
+        // when
+        var first = repository.add(messages.get(0).withDedupKey("a"));
+        var withinWindow = repository.add(messages.get(1).withDedupKey("a"));
+        MILLISECONDS.sleep(400);
+        var afterWindow = repository.add(messages.get(2).withDedupKey("a"));
+
+        // then
+        assertThat(first).isTrue();
+        assertThat(withinWindow).isFalse();
+        assertThat(afterWindow).isTrue();
+        assertThat(repository.backlog()).containsEntry(queueName, 2L);
+    }
+
+    @Test
+    default void should_keep_raw_body() throws Exception {
+        // given
+        var repository = repository(MessageRepositoryConfig.defaults());
+        var queueName = uniqueQueueName();
+        var body = "{\"name\":\"value\",\"count\":3}";
+        var message = new Message(randomUUID(), queueName, CREATED, MessageBody.raw(body), ZonedDateTime.now());
+        repository.add(message);
+
+        // when
+        var received = new ArrayList<Message>();
+        repository.processOldestTask(queueName, received::add);
+
+        // then
+        assertThat(received).singleElement().satisfies(receivedMessage -> {
+            assertThat(receivedMessage.id()).isEqualTo(message.id());
+            assertThat(receivedMessage.body().get("count").asInt()).isEqualTo(3);
+        });
+    }
+
+    private static String uniqueQueueName() {
+        return "contract_" + randomUUID();
+    }
+
+    /**
+     * Messages are a microsecond apart, so their order doesn't depend on the clock resolution.
+     */
+    private static List<Message> buildMessages(String queueName, int count) throws Exception {
+        var body = new ObjectMapper().readTree("{\"name\": \"value\"}");
+        var createdAt = ZonedDateTime.now();
+        var messages = new ArrayList<Message>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(randomUUID(), queueName, CREATED, body, createdAt.plusNanos(i * 1_000L)));
+        }
+        return messages;
+    }
+}
@@ -1,27 +1,68 @@
 package com.grid.queue.message;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.grid.queue.DatabaseIntegrationTest;
+import com.grid.queue.config.ConnectionPool;
+import com.grid.queue.config.PoolConfig;
+import com.grid.queue.metrics.CountingQueueMetrics;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
 import static com.grid.queue.message.MessageState.CREATED;
+import static com.grid.queue.message.MessageState.IN_PROGRESS;
 import static com.grid.queue.message.MessageState.PROCESSED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.Duration.ZERO;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
 import static java.time.ZonedDateTime.now;
 import static java.util.UUID.randomUUID;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toSet;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class MessageRepositoryTest extends DatabaseIntegrationTest {
+    private static final String QUEUE_NAME = "test_queue";
+    private static final String LEASE_QUEUE_NAME = "lease_queue";
+    private static final String ACK_QUEUE_NAME = "ack_queue";
+    private static final String RAW_QUEUE_NAME = "raw_queue";
+    private static final String METRICS_QUEUE_NAME = "metrics_queue";
+    private static final String SCHEDULED_QUEUE_NAME = "scheduled_queue";
+    private static final String RETRY_QUEUE_NAME = "retry_queue";
+    private static final String EXPIRED_LEASE_QUEUE_NAME = "expired_lease_queue";
+    private static final String RECLAIMED_QUEUE_NAME = "reclaimed_queue";
+    private static final String ORDERED_QUEUE_NAME = "ordered_queue";
+    private static final String OUTBOX_QUEUE_NAME = "outbox_queue";
+    private static final String BUFFERED_ACK_QUEUE_NAME = "buffered_ack_queue";
+    private static final String DEDUP_QUEUE_NAME = "dedup_queue";
+    private static final String PAYLOAD_QUEUE_NAME = "payload_queue";
+    private static final String POOLED_QUEUE_NAME = "pooled_queue";
+    private static final String OFFLOADED_QUEUE_NAME = "offloaded_queue";
 
     @RepeatedTest(5)
     void should_process_messages_independently() throws Exception {
@@ -74,6 +115,741 @@ public class MessageRepositoryTest extends DatabaseIntegrationTest {
                 .hasSize(processedMessageIds.size());
     }
 
+    @Test
+    void should_process_messages_in_batches() throws Exception {
+        // given
+        var messages = createMessages(5);
+        var failedMessageId = messages.iterator().next().id();
+        var received = new ArrayList<Message>();
+        var retryingRepository = new JdbcMessageRepository(dataSource, mapper, immediateRetryConfig());
+
+        // when
+        var firstBatch = retryingRepository.processOldestTasks(QUEUE_NAME, batch -> {
+            received.addAll(batch);
+            return BatchResult.failed(List.of(failedMessageId));
+        }, 3);
+        var secondBatch = retryingRepository.processOldestTasks(QUEUE_NAME, __ -> BatchResult.success(), 10);
+        var thirdBatch = retryingRepository.processOldestTasks(QUEUE_NAME, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(received).hasSize(3);
+        assertThat(firstBatch)
+                .hasSize(3)
+                .filteredOn(message -> message.id().equals(failedMessageId))
+                .extracting(Message::state)
+                .containsExactly(CREATED);
+        assertThat(firstBatch)
+                .filteredOn(message -> !message.id().equals(failedMessageId))
+                .extracting(Message::state)
+                .containsOnly(PROCESSED);
+        assertThat(secondBatch)
+                .hasSize(3)
+                .extracting(Message::state)
+                .containsOnly(PROCESSED);
+        assertThat(secondBatch).extracting(Message::id).contains(failedMessageId);
+        assertThat(thirdBatch).isEmpty();
+    }
+
+    @Test
+    void should_add_small_batch_with_insert_batch() throws Exception {
+        // given
+        var statements = new ArrayList<String>();
+        var recordingRepository = new JdbcMessageRepository(recordingDataSource(statements), mapper);
+        var messages = buildMessages(JdbcMessageRepository.COPY_THRESHOLD - 1);
+
+        // when
+        var added = recordingRepository.addAll(messages);
+
+        // then
+        assertThat(added).isEqualTo(messages.size());
+        assertThat(statements)
+                .anyMatch(statement -> statement.contains("INSERT INTO message"))
+                .noneMatch(statement -> statement.startsWith("unwrap"));
+        assertThat(drainQueue()).hasSize(messages.size());
+    }
+
+    @Test
+    void should_add_large_batch_with_copy() throws Exception {
+        // given
+        var statements = new ArrayList<String>();
+        var recordingRepository = new JdbcMessageRepository(recordingDataSource(statements), mapper);
+        var messages = buildMessages(JdbcMessageRepository.COPY_THRESHOLD + 500);
+        messages.add(new Message(randomUUID(), QUEUE_NAME, CREATED, mapper.readTree("""
+                {"text": "tab\\tnew line\\nback slash\\\\"}
+                """), now()));
+
+        // when
+        var added = recordingRepository.addAll(messages);
+
+        // then
+        assertThat(added).isEqualTo(messages.size());
+        assertThat(statements)
+                .noneMatch(statement -> statement.contains("INSERT INTO message"))
+                .anyMatch(statement -> statement.startsWith("unwrap"));
+        var processedMessages = drainQueue();
+        assertThat(processedMessages)
+                .extracting(Message::id)
+                .containsExactlyInAnyOrderElementsOf(messages.stream().map(Message::id).toList());
+        assertThat(processedMessages)
+                .extracting(Message::body)
+                .containsAll(messages.stream().map(Message::body).toList());
+    }
+
+    @Test
+    void should_process_only_messages_of_requested_queue() throws Exception {
+        // given
+        var otherQueueMessage = new Message(randomUUID(), "other_queue", CREATED, buildMessageBody(), now());
+        repository.add(otherQueueMessage);
+        var message = createMessages(1).iterator().next();
+        var task = new SimpleStatefulTask();
+
+        // when
+        var processedMessage = repository.processOldestTask(QUEUE_NAME, task);
+        var emptyResult = repository.processOldestTask(QUEUE_NAME, task);
+        var otherQueueResult = repository.processOldestTask("other_queue", task);
+
+        // then
+        assertThat(processedMessage).map(Message::id).contains(message.id());
+        assertThat(emptyResult).isEmpty();
+        assertThat(otherQueueResult).map(Message::id).contains(otherQueueMessage.id());
+    }
+
+    @Test
+    void should_process_slow_tasks_beyond_pool_size_with_lease() throws Exception {
+        // given
+        var leaseRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults().withLease(ofSeconds(30)));
+        var tasksCount = 20;
+        var body = buildMessageBody();
+        for (int i = 0; i < tasksCount; i++) {
+            leaseRepository.add(new Message(randomUUID(), LEASE_QUEUE_NAME, CREATED, body, now()));
+        }
+        var finishLatch = new CountDownLatch(tasksCount);
+        var tasks = new ArrayList<SlowStatefulTask>();
+
+        // when
+        for (int i = 0; i < tasksCount; i++) {
+            var task = new SlowStatefulTask(IN_PROGRESS);
+            tasks.add(task);
+            new Thread(() -> {
+                var processedMessage = leaseRepository.processOldestTask(LEASE_QUEUE_NAME, task);
+                assertThat(processedMessage).map(Message::state).contains(PROCESSED);
+                finishLatch.countDown();
+            }).start();
+        }
+
+        // then
+        assertThat(finishLatch.await(3, SECONDS)).isTrue();
+        var processedMessageIds = tasks.stream()
+                .map(StatefulTask::state)
+                .map(Optional::get)
+                .map(Message::id)
+                .collect(toSet());
+        assertThat(processedMessageIds).hasSize(tasksCount);
+    }
+
+    @Test
+    void should_return_messages_with_expired_lease_to_queue() throws Exception {
+        // given
+        var leaseRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults().withLease(ofMillis(100)));
+        var message = new Message(randomUUID(), LEASE_QUEUE_NAME, CREATED, buildMessageBody(), now());
+        leaseRepository.add(message);
+        var released = new AtomicInteger();
+
+        // when
+        assertThatThrownBy(() -> leaseRepository.processOldestTask(LEASE_QUEUE_NAME, __ -> {
+            sleep(300);
+            released.set(leaseRepository.releaseExpiredLeases());
+        })).isInstanceOf(IllegalStateException.class);
+        var reprocessedMessage = leaseRepository.processOldestTask(LEASE_QUEUE_NAME, new SimpleStatefulTask(IN_PROGRESS));
+
+        // then
+        assertThat(released).hasValue(1);
+        assertThat(reprocessedMessage).map(Message::id).contains(message.id());
+        assertThat(reprocessedMessage).map(Message::state).contains(PROCESSED);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ClaimMode.class)
+    void should_delete_processed_messages_in_delete_ack_mode(ClaimMode claimMode) throws Exception {
+        // given
+        var config = MessageRepositoryConfig.defaults().withAckMode(AckMode.DELETE);
+        var deleteRepository = new JdbcMessageRepository(dataSource, mapper,
+                claimMode == ClaimMode.LEASE ? config.withLease(ofSeconds(30)) : config);
+        var messages = buildMessages(ACK_QUEUE_NAME, 3);
+        deleteRepository.addAll(messages);
+
+        // when
+        var processedMessage = deleteRepository.processOldestTask(ACK_QUEUE_NAME, __ -> {
+        });
+        var processedBatch = deleteRepository.processOldestTasks(ACK_QUEUE_NAME, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(processedMessage).map(Message::state).contains(PROCESSED);
+        assertThat(processedBatch).hasSize(2);
+        for (var message : messages) {
+            assertThat(count("SELECT count(*) FROM message WHERE id = ?", message)).isZero();
+            assertThat(count("SELECT count(*) FROM message_archive WHERE id = ?", message)).isZero();
+        }
+    }
+
+    @Test
+    void should_archive_processed_messages_in_archive_ack_mode() throws Exception {
+        // given
+        var archiveRepository = new JdbcMessageRepository(dataSource, mapper,
+                MessageRepositoryConfig.defaults().withAckMode(AckMode.ARCHIVE));
+        var message = buildMessages(ACK_QUEUE_NAME, 1).get(0);
+        archiveRepository.add(message);
+
+        // when
+        var processedMessage = archiveRepository.processOldestTask(ACK_QUEUE_NAME, __ -> {
+        });
+
+        // then
+        assertThat(processedMessage).map(Message::id).contains(message.id());
+        assertThat(count("SELECT count(*) FROM message WHERE id = ?", message)).isZero();
+        assertThat(count("SELECT count(*) FROM message_archive WHERE id = ?", message)).isEqualTo(1);
+    }
+
+    @Test
+    void should_enqueue_raw_body_and_bind_it_to_type() throws Exception {
+        // given
+        var rawBody = """
+                {"name": "value", "count": 3}
+                """.getBytes(UTF_8);
+        var message = new Message(randomUUID(), RAW_QUEUE_NAME, CREATED, MessageBody.raw(rawBody), now());
+        repository.add(message);
+        var received = new ArrayList<Message>();
+
+        // when
+        var processedMessage = repository.processOldestTask(RAW_QUEUE_NAME, received::add);
+
+        // then
+        assertThat(processedMessage).map(Message::id).contains(message.id());
+        var payload = received.get(0).payload();
+        assertThat(payload.as(RawBody.class)).isEqualTo(new RawBody("value", 3));
+        try (var parser = payload.parser()) {
+            assertThat(parser.nextToken()).isEqualTo(START_OBJECT);
+            assertThat(parser.nextFieldName()).isIn("name", "count");
+        }
+        assertThat(payload.json().get("count").asInt()).isEqualTo(3);
+        assertThat(payload).isEqualTo(message.payload());
+    }
+
+    @Test
+    void should_record_metrics_and_report_backlog() throws Exception {
+        // given
+        var metrics = new CountingQueueMetrics();
+        var metricsRepository = new JdbcMessageRepository(dataSource, mapper,
+                immediateRetryConfig().withMetrics(metrics).withMessageLogging(false));
+        var messages = buildMessages(METRICS_QUEUE_NAME, 3);
+        metricsRepository.addAll(messages);
+        var backlogBefore = metricsRepository.backlog().get(METRICS_QUEUE_NAME);
+
+        // when
+        metricsRepository.processOldestTask(METRICS_QUEUE_NAME, __ -> {
+        });
+        assertThatThrownBy(() -> metricsRepository.processOldestTask(METRICS_QUEUE_NAME, __ -> {
+            throw new IllegalStateException("Task failed");
+        })).isInstanceOf(RuntimeException.class);
+        metricsRepository.processOldestTasks(METRICS_QUEUE_NAME, batch -> BatchResult.failed(List.of(batch.get(0).id())), 10);
+        var backlogAfter = metricsRepository.backlog().get(METRICS_QUEUE_NAME);
+        metricsRepository.processOldestTasks(METRICS_QUEUE_NAME, __ -> BatchResult.success(), 10);
+        metricsRepository.processOldestTask(METRICS_QUEUE_NAME, __ -> {
+        });
+
+        // then
+        assertThat(backlogBefore).isEqualTo(3);
+        assertThat(backlogAfter).isEqualTo(1);
+        assertThat(metricsRepository.backlog()).doesNotContainKey(METRICS_QUEUE_NAME);
+        var snapshot = metrics.snapshot();
+        var queue = snapshot.queue(METRICS_QUEUE_NAME);
+        assertThat(queue.claims().count()).isEqualTo(5);
+        assertThat(queue.claimedMessages()).isEqualTo(5);
+        assertThat(queue.emptyPolls()).isEqualTo(1);
+        assertThat(queue.emptyPollRate()).isEqualTo(0.2);
+        assertThat(queue.executions().count()).isEqualTo(4);
+        assertThat(queue.failures()).isEqualTo(2);
+        assertThat(queue.commits().count()).isEqualTo(3);
+        assertThat(queue.claims().p50()).isPositive().isLessThanOrEqualTo(queue.claims().p99());
+        assertThat(queue.claims().p99()).isLessThanOrEqualTo(queue.claims().max());
+        assertThat(snapshot.connectionWait().count()).isGreaterThanOrEqualTo(7);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ClaimMode.class)
+    void should_claim_available_messages_by_priority(ClaimMode claimMode) throws Exception {
+        // given
+        var config = MessageRepositoryConfig.defaults();
+        var scheduledRepository = new JdbcMessageRepository(dataSource, mapper,
+                claimMode == ClaimMode.LEASE ? config.withLease(ofSeconds(30)) : config);
+        var messages = buildMessages(SCHEDULED_QUEUE_NAME, 4);
+        var oldest = messages.get(0);
+        var delayed = messages.get(1);
+        var urgent = messages.get(2);
+        var newest = messages.get(3).withAvailableAt(oldest.availableAt().plusNanos(1_000));
+        scheduledRepository.add(oldest);
+        scheduledRepository.add(delayed, ofSeconds(1), 10);
+        scheduledRepository.add(urgent, ofMillis(0), 5);
+        scheduledRepository.add(newest);
+
+        // when
+        var beforeDelay = scheduledRepository.processOldestTasks(SCHEDULED_QUEUE_NAME, __ -> BatchResult.success(), 10);
+        sleep(1200);
+        var afterDelay = scheduledRepository.processOldestTasks(SCHEDULED_QUEUE_NAME, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(beforeDelay).map(Message::id).containsExactly(urgent.id(), oldest.id(), newest.id());
+        assertThat(afterDelay).map(Message::id).containsExactly(delayed.id());
+        assertThat(afterDelay.get(0).priority()).isEqualTo(10);
+        assertThat(afterDelay.get(0).availableAt()).isEqualTo(delayed.createdAt().plusSeconds(1));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ClaimMode.class)
+    void should_back_off_failed_messages_and_dead_letter_them(ClaimMode claimMode) throws Exception {
+        // given
+        var retryPolicy = RetryPolicy.defaults().withMaxAttempts(2).withBackoff(ofMillis(500), ofSeconds(1));
+        var config = MessageRepositoryConfig.defaults().withRetryPolicy(retryPolicy);
+        var retryingRepository = new JdbcMessageRepository(dataSource, mapper,
+                claimMode == ClaimMode.LEASE ? config.withLease(ofSeconds(30)) : config);
+        var message = buildMessages(RETRY_QUEUE_NAME, 1).get(0);
+        retryingRepository.add(message);
+        Task failingTask = __ -> {
+            throw new IllegalStateException("Poison message");
+        };
+
+        // when
+        assertThatThrownBy(() -> retryingRepository.processOldestTask(RETRY_QUEUE_NAME, failingTask))
+                .isInstanceOf(RuntimeException.class);
+        var duringBackoff = retryingRepository.processOldestTask(RETRY_QUEUE_NAME, failingTask);
+        sleep(600);
+        var retried = new ArrayList<Message>();
+        assertThatThrownBy(() -> retryingRepository.processOldestTask(RETRY_QUEUE_NAME, retriedMessage -> {
+            retried.add(retriedMessage);
+            failingTask.execute(retriedMessage);
+        })).isInstanceOf(RuntimeException.class);
+        sleep(1100);
+        var afterDeadLetter = retryingRepository.processOldestTask(RETRY_QUEUE_NAME, failingTask);
+
+        // then
+        assertThat(duringBackoff).isEmpty();
+        assertThat(retried).singleElement().satisfies(retriedMessage -> {
+            assertThat(retriedMessage.attempts()).isEqualTo(1);
+            assertThat(retriedMessage.lastError()).contains("Poison message");
+        });
+        assertThat(afterDeadLetter).isEmpty();
+        assertThat(count("SELECT count(*) FROM message WHERE id = ? AND state = 'FAILED' AND attempts = 2", message)).isEqualTo(1);
+    }
+
+    @Test
+    void should_not_report_failed_message_as_processed_when_its_lease_expired() throws Exception {
+        // given
+        var leaseRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults().withLease(ofMillis(100)));
+        var message = buildMessages(EXPIRED_LEASE_QUEUE_NAME, 1).get(0);
+        leaseRepository.add(message);
+
+        // when
+        var processing = assertThatThrownBy(() -> leaseRepository.processOldestTasks(EXPIRED_LEASE_QUEUE_NAME, batch -> {
+            sleep(200);
+            leaseRepository.releaseExpiredLeases();
+            return BatchResult.failed(List.of(message.id()));
+        }, 10));
+
+        // then
+        processing.isInstanceOf(IllegalStateException.class).hasMessageContaining("Recorded 0 of 1 failed Messages");
+        assertThat(count("SELECT count(*) FROM message WHERE id = ? AND state = 'CREATED' AND attempts = 1", message)).isEqualTo(1);
+    }
+
+    @Test
+    void should_not_acknowledge_message_reclaimed_by_same_instance_after_lease_expired() throws Exception {
+        // given
+        var leaseRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults().withLease(ofMillis(100)));
+        var message = buildMessages(RECLAIMED_QUEUE_NAME, 1).get(0);
+        leaseRepository.add(message);
+        var reclaimed = new CountDownLatch(1);
+        var finish = new CountDownLatch(1);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var secondClaim = new AtomicReference<Future<Optional<Message>>>();
+
+            // when
+            var lateAcknowledgement = assertThatThrownBy(() -> leaseRepository.processOldestTask(RECLAIMED_QUEUE_NAME, __ -> {
+                sleep(200);
+                leaseRepository.releaseExpiredLeases();
+                secondClaim.set(executor.submit(() -> leaseRepository.processOldestTask(RECLAIMED_QUEUE_NAME, ___ -> {
+                    reclaimed.countDown();
+                    await(finish);
+                })));
+                await(reclaimed);
+            }));
+            var inProgressAfterLateAcknowledgement = count("SELECT count(*) FROM message WHERE id = ? AND state = 'IN_PROGRESS'", message);
+            finish.countDown();
+            var processedBySecondClaim = secondClaim.get().get(5, SECONDS);
+
+            // then
+            lateAcknowledgement.isInstanceOf(IllegalStateException.class).hasMessageContaining("Acknowledged 0 of 1 Messages");
+            assertThat(inProgressAfterLateAcknowledgement).isEqualTo(1);
+            assertThat(processedBySecondClaim).map(Message::id).contains(message.id());
+            assertThat(count("SELECT count(*) FROM message WHERE id = ? AND state = 'PROCESSED' AND attempts = 1", message)).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ClaimMode.class)
+    void should_process_one_message_per_partition_key_at_a_time(ClaimMode claimMode) throws Exception {
+        // given
+        var config = MessageRepositoryConfig.defaults();
+        var orderedRepository = new JdbcMessageRepository(dataSource, mapper,
+                claimMode == ClaimMode.LEASE ? config.withLease(ofSeconds(30)) : config);
+        var createdAt = now();
+        var body = buildMessageBody();
+        var firstA = new Message(randomUUID(), ORDERED_QUEUE_NAME, CREATED, body, createdAt).withPartitionKey("a");
+        var firstB = new Message(randomUUID(), ORDERED_QUEUE_NAME, CREATED, body, createdAt.plusNanos(1_000)).withPartitionKey("b");
+        var secondA = new Message(randomUUID(), ORDERED_QUEUE_NAME, CREATED, body, createdAt.plusNanos(2_000)).withPartitionKey("a");
+        var secondB = new Message(randomUUID(), ORDERED_QUEUE_NAME, CREATED, body, createdAt.plusNanos(3_000)).withPartitionKey("b");
+        var unkeyed = new Message(randomUUID(), ORDERED_QUEUE_NAME, CREATED, body, createdAt.plusNanos(4_000));
+        orderedRepository.addAll(List.of(firstA, firstB, secondA, secondB, unkeyed));
+        var claimedConcurrently = new ArrayList<Message>();
+
+        // when
+        var processedFirst = orderedRepository.processOldestTask(ORDERED_QUEUE_NAME, message ->
+                claimedConcurrently.addAll(orderedRepository.processOldestTasks(ORDERED_QUEUE_NAME, __ -> BatchResult.success(), 10)));
+        var processedRest = orderedRepository.processOldestTasks(ORDERED_QUEUE_NAME, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(processedFirst).map(Message::id).contains(firstA.id());
+        assertThat(claimedConcurrently).map(Message::id).containsExactly(firstB.id(), unkeyed.id());
+        assertThat(processedRest).map(Message::id).containsExactly(secondA.id(), secondB.id());
+        assertThat(processedRest).map(Message::partitionKey).containsExactly("a", "b");
+    }
+
+    @Test
+    void should_enqueue_within_caller_transaction() throws Exception {
+        // given
+        var outboxRepository = new JdbcMessageRepository(dataSource, mapper);
+        var rolledBack = buildMessages(OUTBOX_QUEUE_NAME, 3);
+        var committed = buildMessages(OUTBOX_QUEUE_NAME, 3);
+
+        // when
+        try (var connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            outboxRepository.add(connection, rolledBack.get(0));
+            outboxRepository.addAll(connection, rolledBack.subList(1, 3));
+            connection.rollback();
+            outboxRepository.add(connection, committed.get(0));
+            outboxRepository.addAll(connection, committed.subList(1, 3));
+            assertThat(outboxRepository.backlog()).doesNotContainKey(OUTBOX_QUEUE_NAME);
+            connection.commit();
+        }
+        var processed = outboxRepository.processOldestTasks(OUTBOX_QUEUE_NAME, __ -> BatchResult.success(), 10);
+
+        // then
+        assertThat(processed).map(Message::id).containsExactlyInAnyOrderElementsOf(committed.stream().map(Message::id).toList());
+        for (var message : rolledBack) {
+            assertThat(count("SELECT count(*) FROM message WHERE id = ?", message)).isZero();
+        }
+    }
+
+    @Test
+    void should_free_dedup_key_when_caller_transaction_rolls_back() throws Exception {
+        // given
+        var dedupRepository = new JdbcMessageRepository(dataSource, mapper);
+        var messages = buildMessages(DEDUP_QUEUE_NAME, 3);
+        var dedupKey = "dedup-" + randomUUID();
+
+        // when
+        boolean rolledBack;
+        try (var connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            rolledBack = dedupRepository.add(connection, messages.get(0).withDedupKey(dedupKey));
+            connection.rollback();
+        }
+        var added = dedupRepository.add(messages.get(1).withDedupKey(dedupKey));
+        var duplicate = dedupRepository.addAll(List.of(messages.get(2).withDedupKey(dedupKey)));
+
+        // then
+        assertThat(rolledBack).isTrue();
+        assertThat(added).isTrue();
+        assertThat(duplicate).isZero();
+        assertThat(count("SELECT count(*) FROM message WHERE id = ?", messages.get(0))).isZero();
+        assertThat(count("SELECT count(*) FROM message_dedup WHERE message_id = ?", messages.get(1))).isEqualTo(1);
+        assertThat(count("SELECT count(*) FROM message WHERE id = ?", messages.get(2))).isZero();
+    }
+
+    @Test
+    void should_compress_and_offload_large_bodies() throws Exception {
+        // given
+        var payloadRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults()
+                .withAckMode(AckMode.ARCHIVE)
+                .withPayload(PayloadConfig.compressed(100).withOffloadThreshold(2_000))
+                .withMessageLogging(false));
+        var messages = buildMessages(PAYLOAD_QUEUE_NAME, 1_000);
+        var medium = new Message(randomUUID(), PAYLOAD_QUEUE_NAME, CREATED, buildMessageBody(500), now());
+        var large = new Message(randomUUID(), PAYLOAD_QUEUE_NAME, CREATED, buildMessageBody(5_000), now());
+        messages.set(1, medium);
+        messages.set(2, large);
+        var single = new Message(randomUUID(), PAYLOAD_QUEUE_NAME, CREATED, buildMessageBody(5_000), now()).withDedupKey("large-" + randomUUID());
+        payloadRepository.addAll(messages);
+        payloadRepository.add(single);
+        var storedCompressed = count("SELECT count(*) FROM message WHERE id = ? AND body IS NULL AND body_compressed IS NOT NULL", medium);
+        var storedOffloaded = count("SELECT count(*) FROM message WHERE id = ? AND body IS NULL AND body_compressed IS NULL AND body_offloaded", large);
+        var storedPayloads = count("SELECT count(*) FROM message_payload WHERE message_id = ?", large)
+                + count("SELECT count(*) FROM message_payload WHERE message_id = ?", single);
+
+        // when
+        var bodies = new HashMap<UUID, JsonNode>();
+        var descriptions = new HashMap<UUID, String>();
+        payloadRepository.processOldestTasks(PAYLOAD_QUEUE_NAME, batch -> {
+            batch.forEach(message -> {
+                descriptions.put(message.id(), message.toString());
+                bodies.put(message.id(), message.body());
+            });
+            return BatchResult.success();
+        }, 2_000);
+
+        // then
+        assertThat(storedCompressed).isEqualTo(1);
+        assertThat(storedOffloaded).isEqualTo(1);
+        assertThat(storedPayloads).isEqualTo(2);
+        assertThat(bodies).hasSize(1_001);
+        assertThat(descriptions.get(medium.id())).contains("<deferred>");
+        assertThat(descriptions.get(messages.get(0).id())).contains("value");
+        for (var message : List.of(messages.get(0), medium, large, single)) {
+            assertThat(bodies.get(message.id())).isEqualTo(message.body());
+        }
+        assertThat(count("SELECT count(*) FROM message_payload WHERE message_id = ?", large)).isZero();
+        assertThat(count("SELECT count(*) FROM message_archive WHERE id = ? AND body_compressed IS NOT NULL", large)).isEqualTo(1);
+    }
+
+    @Test
+    void should_reject_body_that_is_not_json_before_compressing_it() {
+        // given
+        var payloadRepository = new JdbcMessageRepository(dataSource, mapper, MessageRepositoryConfig.defaults()
+                .withPayload(PayloadConfig.compressed(100).withOffloadThreshold(2_000)));
+        var truncated = "{\"field\": \"" + "value".repeat(100) + "\"";
+        var trailing = "{\"field\": \"" + "value".repeat(1_000) + "\"} {}";
+        var compressed = new Message(randomUUID(), PAYLOAD_QUEUE_NAME, CREATED, MessageBody.raw(truncated), now());
+        var offloaded = new Message(randomUUID(), PAYLOAD_QUEUE_NAME, CREATED, MessageBody.raw(trailing), now());
+
+        // when
+        // then
+        assertThatThrownBy(() -> payloadRepository.add(compressed)).hasRootCauseInstanceOf(JsonParseException.class);
+        assertThatThrownBy(() -> payloadRepository.addAll(List.of(offloaded))).hasStackTraceContaining("Message body has content after its JSON value");
+    }
+
+    @Test
+    void should_read_offloaded_body_in_transaction_with_single_consumer_connection() throws Exception {
+        // given
+        var message = new Message(randomUUID(), OFFLOADED_QUEUE_NAME, CREATED, buildMessageBody(5_000), now());
+        var executor = Executors.newSingleThreadExecutor();
+        try (var consumerPool = new ConnectionPool(connectionConfig,
+                PoolConfig.defaults("consumer").withMaxPoolSize(1).withConnectionTimeout(ofSeconds(1)))) {
+            var offloadingRepository = new JdbcMessageRepository(
+                    new MessageDataSources(dataSource, consumerPool.dataSource(), dataSource), mapper,
+                    MessageRepositoryConfig.defaults()
+                            .withAckMode(AckMode.DELETE)
+                            .withPayload(PayloadConfig.compressed(100).withOffloadThreshold(2_000)));
+            offloadingRepository.add(message);
+            var bodyInTask = new ArrayList<JsonNode>();
+
+            // when
+            var processed = executor.submit(() -> offloadingRepository.processOldestTask(OFFLOADED_QUEUE_NAME,
+                    received -> bodyInTask.add(received.body()))).get(5, SECONDS);
+
+            // then
+            assertThat(bodyInTask).containsExactly(message.body());
+            assertThat(processed).hasValueSatisfying(received -> assertThat(received.body()).isEqualTo(message.body()));
+            assertThat(count("SELECT count(*) FROM message_payload WHERE message_id = ?", message)).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void should_not_fetch_offloaded_body_in_transaction_unless_task_reads_it() throws Exception {
+        // given
+        var message = new Message(randomUUID(), OFFLOADED_QUEUE_NAME, CREATED, buildMessageBody(5_000), now());
+        var offloadingRepository = new JdbcMessageRepository(dataSource, mapper,
+                MessageRepositoryConfig.defaults().withPayload(PayloadConfig.compressed(100).withOffloadThreshold(2_000)));
+        offloadingRepository.add(message);
+
+        // when
+        var processed = offloadingRepository.processOldestTask(OFFLOADED_QUEUE_NAME, __ -> {
+        });
+
+        // then
+        assertThat(processed).hasValueSatisfying(received -> {
+            assertThat(received.payload()).hasToString("<deferred>");
+            assertThatThrownBy(received::body).hasMessageContaining("It can only be read while its task runs");
+        });
+        assertThat(count("SELECT count(*) FROM message_payload WHERE message_id = ?", message)).isOne();
+    }
+
+    @Test
+    void should_enqueue_through_own_pool_while_consumers_hold_theirs() throws Exception {
+        // given
+        var messages = buildMessages(POOLED_QUEUE_NAME, 2);
+        var started = new CountDownLatch(1);
+        var finish = new CountDownLatch(1);
+        var executor = Executors.newSingleThreadExecutor();
+        try (var producerPool = new ConnectionPool(connectionConfig, PoolConfig.defaults("producer").withMaxPoolSize(1));
+             var consumerPool = new ConnectionPool(connectionConfig, PoolConfig.defaults("consumer").withMaxPoolSize(1))) {
+            var pooledRepository = new JdbcMessageRepository(
+                    new MessageDataSources(producerPool.dataSource(), consumerPool.dataSource(), dataSource), mapper,
+                    MessageRepositoryConfig.defaults());
+            pooledRepository.add(messages.get(0));
+            var consumer = executor.submit(() -> pooledRepository.processOldestTask(POOLED_QUEUE_NAME, __ -> {
+                started.countDown();
+                try {
+                    finish.await(5, SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            assertThat(started.await(5, SECONDS)).isTrue();
+
+            // when
+            var consumerStats = consumerPool.stats();
+            var added = pooledRepository.add(messages.get(1));
+            var backlog = pooledRepository.backlog();
+            finish.countDown();
+            var consumed = consumer.get(5, SECONDS);
+            var remaining = pooledRepository.processOldestTask(POOLED_QUEUE_NAME, __ -> {
+            });
+
+            // then
+            assertThat(consumerStats.saturated()).isTrue();
+            assertThat(consumerStats.active()).isEqualTo(1);
+            assertThat(added).isTrue();
+            assertThat(backlog).containsEntry(POOLED_QUEUE_NAME, 2L);
+            assertThat(producerPool.stats().saturated()).isFalse();
+            assertThat(consumed).map(Message::id).contains(messages.get(0).id());
+            assertThat(remaining).map(Message::id).contains(messages.get(1).id());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void should_group_buffered_acknowledgements_and_flush_them_on_close() throws Exception {
+        // given
+        var metrics = new CountingQueueMetrics();
+        var config = MessageRepositoryConfig.defaults()
+                .withLease(ofSeconds(30))
+                .withAckBuffer(new AckBufferConfig(100, 100, ofMillis(200)))
+                .withMetrics(metrics);
+        var messages = buildMessages(BUFFERED_ACK_QUEUE_NAME, 20);
+        var processed = new ArrayList<Message>();
+
+        // when
+        try (var bufferedRepository = new JdbcMessageRepository(dataSource, mapper, config)) {
+            bufferedRepository.addAll(messages);
+            for (int i = 0; i < messages.size(); i++) {
+                bufferedRepository.processOldestTask(BUFFERED_ACK_QUEUE_NAME, __ -> {
+                }).ifPresent(processed::add);
+            }
+        }
+
+        // then
+        assertThat(processed).hasSize(20).extracting(Message::state).containsOnly(PROCESSED);
+        for (var message : messages) {
+            assertThat(count("SELECT count(*) FROM message WHERE id = ? AND state = 'PROCESSED'", message)).isEqualTo(1);
+        }
+        assertThat(metrics.snapshot().queue(BUFFERED_ACK_QUEUE_NAME).commits().count()).isLessThan(20);
+        assertThatThrownBy(() -> MessageRepositoryConfig.defaults().withAckBuffer(AckBufferConfig.defaults()))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private record RawBody(String name, int count) {
+    }
+
+    private static MessageRepositoryConfig immediateRetryConfig() {
+        return MessageRepositoryConfig.defaults().withRetryPolicy(RetryPolicy.defaults().withBackoff(ZERO, ZERO));
+    }
+
+    private static long count(String query, Message message) throws Exception {
+        try (var connection = dataSource.getConnection();
+             var statement = connection.prepareStatement(query)) {
+            statement.setObject(1, message.id());
+            try (var resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Records the SQL of every prepared statement and every unwrap of the driver connection, which only COPY does.
+     */
+    private static DataSource recordingDataSource(List<String> statements) {
+        return proxy(DataSource.class, dataSource, (method, args, result) -> result instanceof Connection connection
+                ? proxy(Connection.class, connection, (connectionMethod, connectionArgs, connectionResult) -> {
+                    switch (connectionMethod.getName()) {
+                        case "prepareStatement" -> statements.add(String.valueOf(connectionArgs[0]));
+                        case "unwrap" -> statements.add("unwrap " + connectionArgs[0]);
+                        default -> {
+                        }
+                    }
+                    return connectionResult;
+                })
+                : result);
+    }
+
+    private static <T> T proxy(Class<T> type, T target, Interceptor interceptor) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            try {
+                return interceptor.intercept(method, args, method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }));
+    }
+
+    private interface Interceptor {
+        Object intercept(Method method, Object[] args, Object result);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(5, SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private List<Message> buildMessages(int count) throws Exception {
+        return buildMessages(QUEUE_NAME, count);
+    }
+
+    private List<Message> buildMessages(String queueName, int count) throws Exception {
+        var messages = new ArrayList<Message>();
+        var body = buildMessageBody();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(randomUUID(), queueName, CREATED, body, now()));
+        }
+        return messages;
+    }
+
+    private List<Message> drainQueue() {
+        var processedMessages = new ArrayList<Message>();
+        List<Message> batch;
+        do {
+            batch = repository.processOldestTasks(QUEUE_NAME, __ -> BatchResult.success(), 1000);
+            processedMessages.addAll(batch);
+        } while (!batch.isEmpty());
+        return processedMessages;
+    }
+
     private Collection<ParallelWorker> createSlowTasks(Collection<Message> messages, CountDownLatch finishLatch) {
         return messages
                 .stream()
@@ -86,7 +862,7 @@ public class MessageRepositoryTest extends DatabaseIntegrationTest {
         var messages = new ArrayList<Message>();
         var body = buildMessageBody();
         for (int i = 0; i < count; i++) {
-            var message = new Message(randomUUID(), "test_queue", CREATED, body, now());
+            var message = new Message(randomUUID(), QUEUE_NAME, CREATED, body, now());
             repository.add(message);
             messages.add(message);
         }
@@ -108,7 +884,7 @@ public class MessageRepositoryTest extends DatabaseIntegrationTest {
         var body = buildMessageBody();
         long count = finishLatch.getCount();
         for (int i = 0; i < count; i++) {
-            var message = new Message(randomUUID(), "test_queue", CREATED, body, now());
+            var message = new Message(randomUUID(), QUEUE_NAME, CREATED, body, now());
             repository.add(message);
             var task = new SimpleStatefulTask();
             var worker = new CoordinatedWorker(task, startLatch, finishLatch);
@@ -117,6 +893,10 @@ public class MessageRepositoryTest extends DatabaseIntegrationTest {
         return workers;
     }
 
+    private JsonNode buildMessageBody(int length) {
+        return mapper.createObjectNode().put("name", "value".repeat(length / 5));
+    }
+
     private JsonNode buildMessageBody() throws Exception {
         var bodyString = """
                 {"name": "value"}
@@ -151,7 +931,7 @@ public class MessageRepositoryTest extends DatabaseIntegrationTest {
     }
 
     private static void processMessage(StatefulTask task) {
-        var processedMessage = repository.processOldestTask(task);
+        var processedMessage = repository.processOldestTask(QUEUE_NAME, task);
         assertThat(processedMessage).isNotEmpty();
         var message = processedMessage.get();
         assertThat(message.state()).isEqualTo(PROCESSED);
@@ -0,0 +1,44 @@
+package com.grid.queue.message;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.lang.System.nanoTime;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentDedupKeysTest {
+    private static final String QUEUE_NAME = "recent_dedup_keys";
+
+    @Test
+    void should_remember_new_keys_once_expired_keys_make_room() throws Exception {
+        // given
+        var keys = new RecentDedupKeys(new DedupConfig(Duration.ofMillis(100), 2));
+        var first = message("first");
+        var second = message("second");
+        var rejected = message("rejected");
+        keys.added(first, nanoTime());
+        keys.added(second, nanoTime());
+        keys.added(rejected, nanoTime());
+
+        // when
+        Thread.sleep(200);
+        var afterExpiry = message("after-expiry");
+        keys.added(afterExpiry, nanoTime());
+
+        // then
+        assertThat(keys.contains(rejected)).isFalse();
+        assertThat(keys.contains(first)).isFalse();
+        assertThat(keys.contains(second)).isFalse();
+        assertThat(keys.contains(afterExpiry)).isTrue();
+    }
+
+    private static Message message(String dedupKey) throws Exception {
+        var body = new ObjectMapper().readTree("{\"field\": \"value\"}");
+        return new Message(randomUUID(), QUEUE_NAME, CREATED, body, now()).withDedupKey(dedupKey);
+    }
+}
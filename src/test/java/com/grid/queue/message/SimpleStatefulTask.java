@@ -11,10 +11,19 @@ public class SimpleStatefulTask implements StatefulTask {
     private static final String STATE_KEY = "STATE";
 
     private final Map<String, Message> state = new ConcurrentHashMap<>();
+    private final MessageState expectedState;
+
+    public SimpleStatefulTask() {
+        this(CREATED);
+    }
+
+    public SimpleStatefulTask(MessageState expectedState) {
+        this.expectedState = expectedState;
+    }
 
     @Override
     public void execute(Message message) {
-        if (!CREATED.equals(message.state())) {
+        if (!expectedState.equals(message.state())) {
             throw new IllegalStateException(format("Error processing Message[%s]. Illegal state [%s]", message.id(), message.state()));
         }
         state.put(STATE_KEY, message);
@@ -12,10 +12,19 @@ public class SlowStatefulTask implements StatefulTask {
     private static final String STATE_KEY = "STATE";
 
     private final Map<String, Message> state = new ConcurrentHashMap<>();
+    private final MessageState expectedState;
+
+    public SlowStatefulTask() {
+        this(CREATED);
+    }
+
+    public SlowStatefulTask(MessageState expectedState) {
+        this.expectedState = expectedState;
+    }
 
     @Override
     public void execute(Message message) {
-        if (!CREATED.equals(message.state())) {
+        if (!expectedState.equals(message.state())) {
             throw new IllegalStateException(format("Error processing Message[%s]. Illegal state [%s]", message.id(), message.state()));
         }
         try {
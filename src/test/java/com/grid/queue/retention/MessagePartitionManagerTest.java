@@ -0,0 +1,49 @@
+package com.grid.queue.retention;
+
+import com.grid.queue.DatabaseIntegrationTest;
+import com.grid.queue.message.BatchResult;
+import com.grid.queue.message.Message;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.time.Duration.ofDays;
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessagePartitionManagerTest extends DatabaseIntegrationTest {
+    private static final String QUEUE_NAME = "retention_queue";
+
+    private final MessagePartitionManager partitionManager =
+            new MessagePartitionManager(dataSource, RetentionConfig.defaults().withRetention(ofDays(7)));
+
+    @Test
+    void should_drop_expired_partitions_with_processed_messages_only() throws Exception {
+        // given
+        var processedDay = LocalDate.now(ZoneOffset.UTC).minusDays(20);
+        var unprocessedDay = LocalDate.now(ZoneOffset.UTC).minusDays(19);
+        partitionManager.createPartition(processedDay);
+        partitionManager.createPartition(unprocessedDay);
+        partitionManager.createPartitions();
+        repository.add(createMessage(processedDay));
+        repository.processOldestTask(QUEUE_NAME, __ -> {
+        });
+        repository.add(createMessage(unprocessedDay));
+
+        // when
+        var dropped = partitionManager.dropExpiredPartitions();
+
+        // then
+        assertThat(dropped).containsExactly("message_p" + processedDay.toString().replace("-", ""));
+        var remaining = repository.processOldestTasks(QUEUE_NAME, __ -> BatchResult.success(), 10);
+        assertThat(remaining).hasSize(1);
+        assertThat(partitionManager.dropExpiredPartitions()).hasSize(1);
+    }
+
+    private Message createMessage(LocalDate day) throws Exception {
+        var createdAt = day.atTime(12, 0).atZone(ZoneOffset.UTC);
+        return new Message(randomUUID(), QUEUE_NAME, CREATED, mapper.readTree("{}"), createdAt);
+    }
+}
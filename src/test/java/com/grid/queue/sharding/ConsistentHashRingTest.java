@@ -0,0 +1,44 @@
+package com.grid.queue.sharding;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void should_spread_keys_and_move_only_keys_of_added_node() {
+        // given
+        var nodes = new LinkedHashMap<String, String>();
+        nodes.put("shard-a", "a");
+        nodes.put("shard-b", "b");
+        nodes.put("shard-c", "c");
+        var ring = new ConsistentHashRing<>(nodes, 128);
+        var assignment = new HashMap<String, String>();
+        for (int i = 0; i < KEYS; i++) {
+            var key = randomUUID().toString();
+            assignment.put(key, ring.node(key));
+        }
+
+        // when
+        nodes.put("shard-d", "d");
+        var grownRing = new ConsistentHashRing<>(nodes, 128);
+
+        // then
+        var keysPerNode = new HashMap<String, Integer>();
+        assignment.values().forEach(node -> keysPerNode.merge(node, 1, Integer::sum));
+        assertThat(keysPerNode.values()).allSatisfy(count -> assertThat(count).isBetween(KEYS / 5, KEYS / 2));
+        var moved = assignment.entrySet().stream()
+                .filter(entry -> !grownRing.node(entry.getKey()).equals(entry.getValue()))
+                .map(Map.Entry::getKey)
+                .toList();
+        assertThat(moved).allSatisfy(key -> assertThat(grownRing.node(key)).isEqualTo("d"));
+        assertThat(moved.size()).isBetween(KEYS / 8, KEYS * 3 / 8);
+    }
+}
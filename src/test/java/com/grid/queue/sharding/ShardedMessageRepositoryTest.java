@@ -0,0 +1,223 @@
+package com.grid.queue.sharding;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.grid.queue.config.ConnectionPool;
+import com.grid.queue.config.DatabaseConnectionConfig;
+import com.grid.queue.config.DatabaseTestContainer;
+import com.grid.queue.message.BatchResult;
+import com.grid.queue.message.BatchTask;
+import com.grid.queue.message.JdbcMessageRepository;
+import com.grid.queue.message.Message;
+import com.grid.queue.message.MessageRepository;
+import com.grid.queue.message.Task;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.grid.queue.message.MessageState.CREATED;
+import static java.lang.Runtime.getRuntime;
+import static java.time.ZonedDateTime.now;
+import static java.util.UUID.randomUUID;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ShardedMessageRepositoryTest {
+    private static final String PUBLIC_SCHEMA = "public";
+    private static final String QUEUE_NAME = "sharded_queue";
+    private static final String KEYED_QUEUE_NAME = "sharded_keyed_queue";
+    private static final String FAILING_SHARD_QUEUE_NAME = "sharded_failing_shard_queue";
+    private static final String FAILING_TASK_QUEUE_NAME = "sharded_failing_task_queue";
+    private static final List<DatabaseConnectionConfig> SHARD_CONFIGS = List.of(
+            new DatabaseConnectionConfig("localhost", 5433, "message", "test", "test"),
+            new DatabaseConnectionConfig("localhost", 5434, "message", "test", "test"));
+    private static final List<DataSource> shardDataSources = new ArrayList<>();
+    private static final ShardedMessageRepository repository;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static {
+        var shards = new LinkedHashMap<String, JdbcMessageRepository>();
+        for (var config : SHARD_CONFIGS) {
+            var testContainer = new DatabaseTestContainer(config);
+            testContainer.start();
+            var dataSource = new ConnectionPool(config).dataSource();
+            var flyway = new Flyway(new FluentConfiguration().dataSource(dataSource).schemas(PUBLIC_SCHEMA));
+            assertThat(flyway.migrate().success).isTrue();
+            shardDataSources.add(dataSource);
+            shards.put(config.host() + ":" + config.port(), new JdbcMessageRepository(dataSource, mapper));
+            getRuntime().addShutdownHook(new Thread(flyway::clean));
+            getRuntime().addShutdownHook(new Thread(testContainer::shutdown));
+        }
+        repository = new ShardedMessageRepository(shards, ShardKey.MESSAGE);
+    }
+
+    @Test
+    void should_spread_messages_over_shards_and_drain_them_in_turns() throws Exception {
+        // given
+        var messages = buildMessages(QUEUE_NAME, 200);
+        repository.addAll(messages);
+        var firstShardIds = messageIds(shardDataSources.get(0), QUEUE_NAME);
+        var secondShardIds = messageIds(shardDataSources.get(1), QUEUE_NAME);
+
+        // when
+        var batches = new ArrayList<List<Message>>();
+        List<Message> batch;
+        while (!(batch = repository.processOldestTasks(QUEUE_NAME, __ -> BatchResult.success(), 20)).isEmpty()) {
+            batches.add(batch);
+        }
+
+        // then
+        assertThat(firstShardIds).isNotEmpty();
+        assertThat(secondShardIds).isNotEmpty();
+        assertThat(firstShardIds.size() + secondShardIds.size()).isEqualTo(200);
+        assertThat(batches.stream().flatMap(List::stream).map(Message::id))
+                .doesNotHaveDuplicates()
+                .containsExactlyInAnyOrderElementsOf(messages.stream().map(Message::id).toList());
+        var firstBatchFromFirstShard = firstShardIds.contains(batches.get(0).get(0).id());
+        var secondBatchFromFirstShard = firstShardIds.contains(batches.get(1).get(0).id());
+        assertThat(firstBatchFromFirstShard).isNotEqualTo(secondBatchFromFirstShard);
+        assertThat(repository.backlog()).doesNotContainKey(QUEUE_NAME);
+    }
+
+    @Test
+    void should_keep_messages_of_partition_key_on_one_shard() throws Exception {
+        // given
+        var messages = buildMessages(KEYED_QUEUE_NAME, 20).stream()
+                .map(message -> message.withPartitionKey("account-1"))
+                .toList();
+
+        // when
+        repository.addAll(messages);
+
+        // then
+        assertThat(repository.backlog()).containsEntry(KEYED_QUEUE_NAME, 20L);
+        var firstShardCount = messageIds(shardDataSources.get(0), KEYED_QUEUE_NAME).size();
+        assertThat(firstShardCount).isIn(0, 20);
+        var processed = new ArrayList<Message>();
+        while (repository.processOldestTask(KEYED_QUEUE_NAME, processed::add).isPresent()) {
+        }
+        assertThat(processed).map(Message::id).containsExactlyElementsOf(messages.stream().map(Message::id).toList());
+    }
+
+    @Test
+    void should_drain_remaining_shards_when_one_fails_and_close_all_shards() throws Exception {
+        // given
+        var failingShard = new FailingRepository();
+        var healthyShard = new JdbcMessageRepository(shardDataSources.get(0), mapper);
+        var shards = new LinkedHashMap<String, MessageRepository>();
+        shards.put("failing", failingShard);
+        shards.put("healthy", healthyShard);
+        var partlyFailingRepository = new ShardedMessageRepository(shards, ShardKey.MESSAGE);
+        var messages = buildMessages(FAILING_SHARD_QUEUE_NAME, 3);
+        healthyShard.addAll(messages);
+
+        // when
+        var processed = new ArrayList<Message>();
+        while (partlyFailingRepository.processOldestTask(FAILING_SHARD_QUEUE_NAME, processed::add).isPresent()) {
+        }
+        partlyFailingRepository.close();
+
+        // then
+        assertThat(processed).map(Message::id).containsExactlyElementsOf(messages.stream().map(Message::id).toList());
+        assertThat(failingShard.polls).isPositive();
+        assertThat(failingShard.closed).isTrue();
+        var failingOnly = new ShardedMessageRepository(Map.of("failing", failingShard), ShardKey.MESSAGE);
+        assertThatThrownBy(() -> failingOnly.processOldestTasks(FAILING_SHARD_QUEUE_NAME, __ -> BatchResult.success(), 10))
+                .hasMessageContaining("Shard is down");
+    }
+
+    @Test
+    void should_throw_task_failure_without_polling_other_shards() throws Exception {
+        // given
+        var shards = new LinkedHashMap<String, MessageRepository>();
+        for (var dataSource : shardDataSources) {
+            var shard = new JdbcMessageRepository(dataSource, mapper);
+            shard.addAll(buildMessages(FAILING_TASK_QUEUE_NAME, 1));
+            shards.put("shard-" + shards.size(), shard);
+        }
+        var shardedRepository = new ShardedMessageRepository(shards, ShardKey.MESSAGE);
+        var executions = new AtomicInteger();
+
+        // when
+        var processing = assertThatThrownBy(() -> shardedRepository.processOldestTask(FAILING_TASK_QUEUE_NAME, __ -> {
+            executions.incrementAndGet();
+            throw new IllegalArgumentException("Task failed");
+        }));
+
+        // then
+        processing.hasRootCauseInstanceOf(IllegalArgumentException.class).hasRootCauseMessage("Task failed");
+        assertThat(executions).hasValue(1);
+    }
+
+    private static Set<UUID> messageIds(DataSource dataSource, String queueName) throws Exception {
+        try (var connection = dataSource.getConnection();
+             var statement = connection.prepareStatement("SELECT id FROM message WHERE queue_name = ?")) {
+            statement.setString(1, queueName);
+            var ids = new HashSet<UUID>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(UUID.fromString(resultSet.getString("id")));
+                }
+            }
+            return ids;
+        }
+    }
+
+    private static List<Message> buildMessages(String queueName, int count) throws Exception {
+        var body = mapper.readTree("{\"field\": \"value\"}");
+        var createdAt = now();
+        var messages = new ArrayList<Message>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(randomUUID(), queueName, CREATED, body, createdAt.plusNanos(i * 1_000L)));
+        }
+        return messages;
+    }
+
+    private static class FailingRepository implements MessageRepository, AutoCloseable {
+        private int polls;
+        private boolean closed;
+
+        @Override
+        public Optional<Message> processOldestTask(String queueName, Task task) {
+            polls++;
+            throw new RuntimeException("Shard is down");
+        }
+
+        @Override
+        public List<Message> processOldestTasks(String queueName, BatchTask task, int maxBatch) {
+            polls++;
+            throw new RuntimeException("Shard is down");
+        }
+
+        @Override
+        public boolean add(Message message) {
+            throw new RuntimeException("Shard is down");
+        }
+
+        @Override
+        public int addAll(Collection<Message> messages) {
+            throw new RuntimeException("Shard is down");
+        }
+
+        @Override
+        public Map<String, Long> backlog() {
+            throw new RuntimeException("Shard is down");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}